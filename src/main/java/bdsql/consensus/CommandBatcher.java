@@ -0,0 +1,92 @@
+package bdsql.consensus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Collects client commands on the leader for a short window and hands them to the log as one
+// batch, so that a burst costs one WAL write, one fsync and one AppendEntries per peer instead of
+// one of each per command. A batch is closed when the window since its first command expires or
+// when it reaches maxCommands or maxBytes.
+public class CommandBatcher {
+    public record Command(byte[] data, CompletableFuture<Long> future) {}
+
+    private final long windowNanos;
+    private final int maxCommands;
+    private final long maxBytes;
+    private final Consumer<List<Command>> sink;
+    private final BlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public CommandBatcher(String nodeId, long windowMicros, int maxCommands, long maxBytes,
+            Consumer<List<Command>> sink) {
+        this.windowNanos = windowMicros * 1000L;
+        this.maxCommands = Math.max(1, maxCommands);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.sink = sink;
+        this.worker = new Thread(this::run, "raft-batcher-" + nodeId);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public void submit(Command command) {
+        if (!running) {
+            command.future().complete(-1L);
+            return;
+        }
+        queue.add(command);
+    }
+
+    private void run() {
+        List<Command> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Command first = queue.take();
+                batch.add(first);
+                long bytes = first.data().length;
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxCommands && bytes < maxBytes) {
+                    Command next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    batch.add(next);
+                    bytes += next.data().length;
+                }
+                sink.accept(batch);
+            } catch (InterruptedException ie) {
+                break;
+            } catch (RuntimeException e) {
+                System.err.println("command batch failed: " + e.getMessage());
+                for (Command c : batch) {
+                    c.future().complete(-1L);
+                }
+            }
+            batch = new ArrayList<>();
+        }
+        for (Command c : batch) {
+            c.future().complete(-1L);
+        }
+        Command c;
+        while ((c = queue.poll()) != null) {
+            c.future().complete(-1L);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+}
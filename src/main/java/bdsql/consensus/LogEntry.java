@@ -1,3 +1,12 @@
 package bdsql.consensus;
 
-public record LogEntry(long index, long term, byte[] data) {}
+import com.google.protobuf.ByteString;
+
+// The payload is an immutable ByteString so that it can be shared between the tail cache, every
+// peer's AppendEntries and the state machine without copying.
+public record LogEntry(long index, long term, ByteString payload) {
+    // Returns a fresh copy of the payload.
+    public byte[] data() {
+        return payload.toByteArray();
+    }
+}
@@ -0,0 +1,121 @@
+package bdsql.consensus;
+
+import com.google.protobuf.ByteString;
+
+// Payloads of the most recent log entries, kept as one contiguous run that ends at the last index
+// and is bounded by total bytes. The oldest payloads are evicted first; readers fall back to the
+// WAL for anything older. Callers provide the locking.
+final class LogTailCache {
+    // Rough per-entry heap cost on top of the payload, so that tiny entries are bounded too.
+    private static final int ENTRY_OVERHEAD_BYTES = 48;
+
+    private final long maxBytes;
+    private ByteString[] ring = new ByteString[64];
+    private int head;
+    private int count;
+    private long firstIndex;
+    private long bytes;
+
+    LogTailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    long maxBytes() {
+        return maxBytes;
+    }
+
+    long firstIndex() {
+        return count == 0 ? -1 : firstIndex;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    void append(long index, ByteString data) {
+        if (count > 0 && index != firstIndex + count) {
+            clear();
+        }
+        if (count == 0) {
+            firstIndex = index;
+        }
+        if (count == ring.length) {
+            grow();
+        }
+        ring[(head + count) & (ring.length - 1)] = data;
+        count++;
+        bytes += cost(data);
+        while (bytes > maxBytes && count > 0) {
+            removeFirst();
+        }
+    }
+
+    ByteString get(long index) {
+        if (count == 0 || index < firstIndex || index >= firstIndex + count) {
+            return null;
+        }
+        return ring[(head + (int) (index - firstIndex)) & (ring.length - 1)];
+    }
+
+    // Counts how many entries from index on (at most max) fit in maxBytes of payload. The first one
+    // always counts, so an oversized entry is still handed out on its own.
+    int countWithin(long index, int max, long maxBytes) {
+        if (count == 0 || index < firstIndex || index >= firstIndex + count) {
+            return 0;
+        }
+        int available = (int) Math.min(max, firstIndex + count - index);
+        int offset = (int) (index - firstIndex);
+        long total = 0;
+        for (int n = 0; n < available; n++) {
+            ByteString data = ring[(head + offset + n) & (ring.length - 1)];
+            total += data == null ? 0 : data.size();
+            if (n > 0 && total > maxBytes) {
+                return n;
+            }
+        }
+        return available;
+    }
+
+    // Keeps entries up to and including index.
+    void truncateAfter(long index) {
+        while (count > 0 && firstIndex + count - 1 > index) {
+            int slot = (head + count - 1) & (ring.length - 1);
+            bytes -= cost(ring[slot]);
+            ring[slot] = null;
+            count--;
+        }
+    }
+
+    void evictThrough(long index) {
+        while (count > 0 && firstIndex <= index) {
+            removeFirst();
+        }
+    }
+
+    void clear() {
+        while (count > 0) {
+            removeFirst();
+        }
+    }
+
+    private void removeFirst() {
+        bytes -= cost(ring[head]);
+        ring[head] = null;
+        head = (head + 1) & (ring.length - 1);
+        count--;
+        firstIndex++;
+    }
+
+    private void grow() {
+        ByteString[] grown = new ByteString[ring.length * 2];
+        for (int i = 0; i < count; i++) {
+            grown[i] = ring[(head + i) & (ring.length - 1)];
+        }
+        ring = grown;
+        head = 0;
+    }
+
+    private static long cost(ByteString data) {
+        return ENTRY_OVERHEAD_BYTES + (data == null ? 0 : data.size());
+    }
+}
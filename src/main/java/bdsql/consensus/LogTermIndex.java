@@ -0,0 +1,126 @@
+package bdsql.consensus;
+
+import java.util.Arrays;
+
+// Terms of the entries in (baseIndex, lastIndex], run-length encoded: a new run starts only when
+// the term changes, so the whole log costs two longs per leadership change. baseIndex is the last
+// entry folded into a snapshot and only its term is remembered. Callers provide the locking.
+final class LogTermIndex {
+    private long baseIndex;
+    private long baseTerm;
+    private long lastIndex;
+    private long[] runStart = new long[16];
+    private long[] runTerm = new long[16];
+    private int runs;
+
+    LogTermIndex(long baseIndex, long baseTerm) {
+        reset(baseIndex, baseTerm);
+    }
+
+    long baseIndex() {
+        return baseIndex;
+    }
+
+    long lastIndex() {
+        return lastIndex;
+    }
+
+    long lastTerm() {
+        return runs == 0 ? baseTerm : runTerm[runs - 1];
+    }
+
+    // Returns -1 for indexes below the base or past the end.
+    long termAt(long index) {
+        if (index == baseIndex) {
+            return baseTerm;
+        }
+        if (index < baseIndex || index > lastIndex) {
+            return -1;
+        }
+        return runTerm[floorRun(index)];
+    }
+
+    // First index of the run of equal terms that contains index, never below baseIndex + 1.
+    long firstIndexOfRun(long index) {
+        if (runs == 0 || index <= baseIndex) {
+            return baseIndex + 1;
+        }
+        return Math.max(runStart[floorRun(index)], baseIndex + 1);
+    }
+
+    // Last index that holds term, or -1 if no entry here has it.
+    long lastIndexOfTerm(long term) {
+        for (int r = runs - 1; r >= 0; r--) {
+            if (runTerm[r] == term) {
+                return r + 1 < runs ? runStart[r + 1] - 1 : lastIndex;
+            }
+            if (runTerm[r] < term) {
+                break;
+            }
+        }
+        return term == baseTerm ? baseIndex : -1;
+    }
+
+    void append(long index, long term) {
+        if (index != lastIndex + 1) {
+            throw new IllegalArgumentException("term index append out of order: " + index + " after " + lastIndex);
+        }
+        if (runs == 0 || runTerm[runs - 1] != term) {
+            if (runs == runStart.length) {
+                runStart = Arrays.copyOf(runStart, runs * 2);
+                runTerm = Arrays.copyOf(runTerm, runs * 2);
+            }
+            runStart[runs] = index;
+            runTerm[runs] = term;
+            runs++;
+        }
+        lastIndex = index;
+    }
+
+    // Keeps entries up to and including index.
+    void truncateAfter(long index) {
+        if (index >= lastIndex) {
+            return;
+        }
+        lastIndex = Math.max(index, baseIndex);
+        while (runs > 0 && runStart[runs - 1] > lastIndex) {
+            runs--;
+        }
+    }
+
+    // Makes index the new base, dropping the runs that only cover entries at or below it.
+    void compactTo(long index, long term) {
+        if (index >= lastIndex) {
+            reset(index, term);
+            return;
+        }
+        int first = floorRun(index + 1);
+        System.arraycopy(runStart, first, runStart, 0, runs - first);
+        System.arraycopy(runTerm, first, runTerm, 0, runs - first);
+        runs -= first;
+        runStart[0] = index + 1;
+        baseIndex = index;
+        baseTerm = term;
+    }
+
+    void reset(long index, long term) {
+        baseIndex = index;
+        baseTerm = term;
+        lastIndex = index;
+        runs = 0;
+    }
+
+    private int floorRun(long index) {
+        int lo = 0;
+        int hi = runs - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (runStart[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,308 @@
+package bdsql.consensus;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import bdsql.consensus.rpc.AppendEntriesRequest;
+import bdsql.consensus.rpc.AppendEntriesResponse;
+import bdsql.consensus.rpc.RaftGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+// Replicates the leader's log to one follower over a long-lived ReplicateStream. Up to maxInFlight
+// AppendEntries batches may be outstanding at once: nextIndex advances as soon as a batch is sent,
+// and a rejection or a broken stream rolls it back. The follower answers every message in order, so
+// each ack is matched to the oldest outstanding batch. Rolling back bumps the epoch, so rejections of
+// batches sent before it are ignored.
+//
+// All sending happens on one long-lived thread per peer. Appends, heartbeats, commit advances and
+// acknowledgements only raise a signal, and any number of them are folded into the next pass.
+final class PeerReplicator {
+    private static final long ACK_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    private record Pending(long epoch, long term, long prevIdx, long lastIdx, long sentAtNanos) {}
+
+    private final String peer;
+    private final RaftReplicationManager manager;
+    private final RaftStateManager stateManager;
+    private final ManagedChannel channel;
+
+    // Guarded by this.
+    private long nextIndex;
+    private long epoch;
+    private long sentCommitIndex;
+    private long ackedIndex = -1;
+    private StreamObserver<AppendEntriesRequest> stream;
+    private StreamObserver<AppendEntriesResponse> listener;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    // Guarded by signal.
+    private final Object signal = new Object();
+    private boolean wakeup;
+    private boolean heartbeatDue;
+    private volatile boolean running = true;
+    private final Thread worker;
+
+    PeerReplicator(String peer, RaftReplicationManager manager, RaftStateManager stateManager,
+            ManagedChannel channel, long nextIndex) {
+        this.peer = peer;
+        this.manager = manager;
+        this.stateManager = stateManager;
+        this.channel = channel;
+        this.nextIndex = nextIndex;
+        this.worker = new Thread(this::run, "raft-replicator-" + peer);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    synchronized long nextIndex() {
+        return nextIndex;
+    }
+
+    synchronized int inFlight() {
+        return pending.size();
+    }
+
+    // Forgets everything in flight and starts again from nextIndex on a fresh stream.
+    synchronized void reset(long nextIndex) {
+        closeStream();
+        this.nextIndex = nextIndex;
+        sentCommitIndex = 0;
+        ackedIndex = -1;
+        epoch++;
+    }
+
+    // Asks the worker for another pass; returns at once.
+    void trigger(boolean heartbeat) {
+        synchronized (signal) {
+            wakeup = true;
+            heartbeatDue |= heartbeat;
+            signal.notify();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        worker.interrupt();
+        synchronized (this) {
+            closeStream();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            boolean heartbeat;
+            try {
+                synchronized (signal) {
+                    while (!wakeup) {
+                        signal.wait();
+                    }
+                    wakeup = false;
+                    heartbeat = heartbeatDue;
+                    heartbeatDue = false;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                replicate(heartbeat);
+            } catch (RuntimeException e) {
+                System.err.println("replication to " + peer + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Sends batches until the window is full or the follower has been sent everything. Liveness has
+    // its own Heartbeat RPC; here a heartbeat only forces an empty probe when nothing is in flight and
+    // the follower has not yet confirmed it matches up to nextIndex - 1. A commit index the follower
+    // has not been sent yet also goes out on its own.
+    //
+    // Entries are read and encoded without holding this, so a cold WAL read never holds up acks;
+    // the batch is only sent if nextIndex and the epoch are still what it was built against.
+    private void replicate(boolean heartbeat) {
+        RaftReplicationManager.LogProvider log = manager.getLogProvider();
+        synchronized (this) {
+            Pending oldest = pending.peek();
+            if (oldest != null && System.nanoTime() - oldest.sentAtNanos() > ACK_TIMEOUT_NANOS) {
+                // The follower stopped answering; start over on a new stream.
+                rollBackStream();
+            }
+        }
+        while (stateManager.isLeader()) {
+            long from;
+            long seenEpoch;
+            synchronized (this) {
+                if (pending.size() >= manager.getMaxInFlight()) {
+                    return;
+                }
+                if (nextIndex <= log.getLogBaseIndex()) {
+                    // The entries this peer needs have been compacted away.
+                    if (pending.isEmpty()) {
+                        manager.startSnapshotTransfer(peer);
+                    }
+                    return;
+                }
+                from = nextIndex;
+                seenEpoch = epoch;
+            }
+            long prevIdx = from - 1;
+            long prevTerm = log.getTerm(prevIdx);
+            if (prevTerm < 0) {
+                // Compacted since we looked at the log base; the next round sends the snapshot.
+                return;
+            }
+            List<LogEntry> entries = log.getEntries(from, manager.getMaxBatchEntries(),
+                    manager.getMaxBatchBytes());
+            if (!entries.isEmpty() && entries.get(0).index() != from) {
+                return;
+            }
+            long commitIndex = log.getCommitIndex();
+            long term = stateManager.getCurrentTerm();
+            AppendEntriesRequest.Builder builder = AppendEntriesRequest.newBuilder()
+                    .setTerm(term)
+                    .setPrevLogIndex(prevIdx)
+                    .setPrevLogTerm(prevTerm)
+                    .setLeaderCommit(commitIndex);
+            for (LogEntry le : entries) {
+                builder.addEntries(manager.encode(le));
+            }
+
+            synchronized (this) {
+                if (nextIndex != from || epoch != seenEpoch) {
+                    // An ack or a rollback moved nextIndex while we were reading; look again.
+                    continue;
+                }
+                boolean probe = heartbeat && pending.isEmpty() && ackedIndex < prevIdx;
+                if (entries.isEmpty() && !probe && commitIndex <= sentCommitIndex) {
+                    return;
+                }
+                heartbeat = false;
+
+                send(builder, term, prevIdx, prevIdx + entries.size(), commitIndex);
+                if (entries.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Caller holds this. The leader id is only sent as the first message of a stream; the follower
+    // remembers it for the rest.
+    private void send(AppendEntriesRequest.Builder builder, long term, long prevIdx, long lastIdx,
+            long commitIndex) {
+        if (stream == null) {
+            listener = new StreamListener();
+            stream = RaftGrpc.newStub(channel).replicateStream(listener);
+            builder.setLeaderId(stateManager.getHost() + ":" + stateManager.getPort());
+        }
+
+        pending.add(new Pending(epoch, term, prevIdx, lastIdx, System.nanoTime()));
+        nextIndex = lastIdx + 1;
+        sentCommitIndex = Math.max(sentCommitIndex, commitIndex);
+        stream.onNext(builder.build());
+    }
+
+    private void onAck(StreamObserver<AppendEntriesResponse> source, AppendEntriesResponse resp) {
+        if (resp.getTerm() > stateManager.getCurrentTerm()) {
+            manager.stepDown(resp.getTerm());
+            return;
+        }
+        Pending sent;
+        boolean resend = false;
+        synchronized (this) {
+            if (source != listener || (sent = pending.poll()) == null) {
+                return;
+            }
+            if (!resp.getSuccess() && sent.epoch() == epoch) {
+                nextIndex = rollbackTarget(sent.prevIdx(), resp);
+                epoch++;
+                resend = resp.getConflictIndex() > 0;
+            }
+        }
+
+        boolean current = sent.term() == stateManager.getCurrentTerm() && stateManager.isLeader();
+        if (resp.getSuccess() && current) {
+            long match = resp.getMatchIndex() > 0 ? resp.getMatchIndex() : sent.lastIdx();
+            synchronized (this) {
+                nextIndex = Math.max(nextIndex, match + 1);
+                ackedIndex = Math.max(ackedIndex, match);
+            }
+            manager.recordHeartbeat(peer);
+            manager.advanceMatchIndex(peer, match);
+            manager.getLogProvider().tryCommit();
+            trigger(false);
+        } else if (resend) {
+            // The hints tell us exactly where to resume, so retry now rather than on the next heartbeat.
+            trigger(false);
+        }
+    }
+
+    // Skip the follower's whole conflicting term, or straight to its end if its log is short.
+    // Responses without hints fall back to stepping back a single entry.
+    private long rollbackTarget(long prevIdx, AppendEntriesResponse resp) {
+        long target = prevIdx;
+        if (resp.getConflictIndex() > 0) {
+            target = resp.getConflictIndex();
+            if (resp.getConflictTerm() > 0) {
+                long lastOfTerm = manager.getLogProvider().getLastIndexOfTerm(resp.getConflictTerm());
+                if (lastOfTerm > 0) {
+                    target = lastOfTerm + 1;
+                }
+            }
+        }
+        return Math.max(1, Math.min(target, prevIdx));
+    }
+
+    // The stream broke; resend from the oldest unacknowledged batch on the next heartbeat.
+    private synchronized void onStreamClosed(StreamObserver<AppendEntriesResponse> source) {
+        if (source == listener) {
+            rollBackStream();
+        }
+    }
+
+    // Caller holds this.
+    private void rollBackStream() {
+        for (Pending p : pending) {
+            if (p.epoch() == epoch) {
+                nextIndex = Math.min(nextIndex, p.prevIdx() + 1);
+                break;
+            }
+        }
+        closeStream();
+        sentCommitIndex = 0;
+        epoch++;
+    }
+
+    // Caller holds this.
+    private void closeStream() {
+        StreamObserver<AppendEntriesRequest> s = stream;
+        stream = null;
+        listener = null;
+        pending.clear();
+        if (s != null) {
+            try {
+                s.onError(Status.CANCELLED.withDescription("replication stream reset").asRuntimeException());
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    private final class StreamListener implements StreamObserver<AppendEntriesResponse> {
+        @Override
+        public void onNext(AppendEntriesResponse resp) {
+            onAck(this, resp);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            onStreamClosed(this);
+        }
+
+        @Override
+        public void onCompleted() {
+            onStreamClosed(this);
+        }
+    }
+}
@@ -38,8 +38,15 @@ public class RaftElectionManager {
         return t;
     });
     
+    // Shortest election timeout. A leader's read lease never outlasts it, and with lease reads on a
+    // follower ignores vote requests for this long after hearing from its leader.
+    static final long ELECTION_TIMEOUT_MIN_MS = 1000L;
+
     private ScheduledFuture<?> electionTimeoutTask;
     private LogProvider logProvider;
+    // Starts as if the leader had just been heard from, so a restarted node keeps any promise it
+    // made before the restart.
+    private volatile long lastLeaderContactNanos = System.nanoTime();
 
     public RaftElectionManager(
             String nodeId,
@@ -60,10 +67,21 @@ public class RaftElectionManager {
         if (electionTimeoutTask != null) {
             electionTimeoutTask.cancel(false);
         }
-        long timeout = 1000 + new Random().nextInt(1000);
+        long timeout = ELECTION_TIMEOUT_MIN_MS + new Random().nextInt(1000);
         electionTimeoutTask = scheduler.schedule(this::onElectionTimeout, timeout, TimeUnit.MILLISECONDS);
     }
 
+    public void recordLeaderContact() {
+        lastLeaderContactNanos = System.nanoTime();
+    }
+
+    // True while a leader we acknowledged may still be relying on that for a read lease. Always false
+    // when lease reads are off, so elections keep their usual timing.
+    public boolean withinLeaderLease() {
+        return replicationManager.isLeaseReadsEnabled()
+                && System.nanoTime() - lastLeaderContactNanos < TimeUnit.MILLISECONDS.toNanos(ELECTION_TIMEOUT_MIN_MS);
+    }
+
     public void cancelElectionTimeout() {
         if (electionTimeoutTask != null) {
             electionTimeoutTask.cancel(true);
@@ -142,6 +160,9 @@ public class RaftElectionManager {
         stateManager.becomeLeader();
         replicationManager.initializeIndices(logProvider.getLogSize());
         replicationManager.startHeartbeats();
+        // Committing an entry of the new term settles everything earlier leaders left behind, which
+        // ReadIndex reads rely on.
+        logProvider.appendNoOp();
     }
 
     private ManagedChannel getOrCreateChannel(String peer) {
@@ -161,8 +182,9 @@ public class RaftElectionManager {
     }
 
     public interface LogProvider {
-        int getLogSize();
+        long getLogSize();
         long getLastLogTerm();
         void clearPendingCommits();
+        void appendNoOp();
     }
 }
\ No newline at end of file
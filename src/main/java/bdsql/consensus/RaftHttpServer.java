@@ -11,7 +11,10 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import com.google.gson.Gson;
@@ -36,8 +39,12 @@ public class RaftHttpServer {
     private final BTreeDocumentStore documentStore;
     private final ClusterInfo clusterInfo;
     private HttpServer httpServer;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
     private final Gson gson = new Gson();
 
+    private static final int FULL_LOG_MAX_ENTRIES = 10_000;
+    private static final long FULL_LOG_MAX_BYTES = 16L * 1024 * 1024;
+
     public RaftHttpServer(
             String nodeId,
             RaftStateManager stateManager,
@@ -68,7 +75,7 @@ public class RaftHttpServer {
         httpServer.createContext("/api/doc", this::handleDocument);
         httpServer.createContext("/api/doc/index", this::handleDocumentIndex);
 
-        httpServer.setExecutor(Executors.newCachedThreadPool());
+        httpServer.setExecutor(executor);
         httpServer.start();
         System.out.println("HTTP client API + admin UI started at port " + httpPort);
         System.out.println("Swagger UI available at: http://localhost:" + httpPort + "/swagger");
@@ -78,6 +85,7 @@ public class RaftHttpServer {
         if (httpServer != null) {
             httpServer.stop(0);
         }
+        executor.shutdownNow();
     }
 
     private void handleAdminDashboard(HttpExchange exchange) throws IOException {
@@ -100,12 +108,20 @@ public class RaftHttpServer {
 
     private void handleStatus(HttpExchange exchange) throws IOException {
         String resp = String.format(
-                "{\"id\":\"%s\",\"state\":\"%s\",\"term\":%d,\"commitIndex\":%d,\"lastApplied\":%d}",
+                "{\"id\":\"%s\",\"state\":\"%s\",\"term\":%d,\"commitIndex\":%d,\"lastApplied\":%d,"
+                        + "\"durableIndex\":%d,\"syncedIndex\":%d,\"durability\":\"%s\",\"snapshotIndex\":%d,\"logCacheBytes\":%d,"
+                        + "\"readLease\":%b}",
                 nodeId,
                 stateManager.getState(),
                 stateManager.getCurrentTerm(),
                 logManager.getCommitIndex(),
-                logManager.getLastApplied());
+                logManager.getLastApplied(),
+                logManager.getDurableIndex(),
+                logManager.getSyncedIndex(),
+                logManager.getDurabilityPolicy(),
+                logManager.getSnapshotIndex(),
+                logManager.getCacheBytes(),
+                replicationManager.hasReadLease());
         sendJson(exchange, 200, resp);
     }
 
@@ -117,6 +133,7 @@ public class RaftHttpServer {
             sb.append("\"peers\":[");
 
             var peers = clusterInfo.getPeerAddressesExcept(nodeId);
+            long lastIndex = logManager.getLogSize() - 1;
             boolean first = true;
             for (String p : new LinkedHashSet<>(peers)) {
                 if (!first)
@@ -130,6 +147,9 @@ public class RaftHttpServer {
                 sb.append("{\"addr\":\"").append(escapeJson(p))
                         .append("\",\"nextIndex\":").append(ni)
                         .append(",\"matchIndex\":").append(mi)
+                        .append(",\"lag\":").append(Math.max(0, lastIndex - mi))
+                        .append(",\"inFlight\":").append(replicationManager.getInFlight(p))
+                        .append(",\"installingSnapshot\":").append(replicationManager.isInstallingSnapshot(p))
                         .append(",\"lastHeartbeat\":").append(lastHb)
                         .append("}");
             }
@@ -161,7 +181,7 @@ public class RaftHttpServer {
                 m.put("term", le.term());
                 String dataStr;
                 try {
-                    dataStr = new String(le.data(), StandardCharsets.UTF_8);
+                    dataStr = le.payload().toStringUtf8();
                 } catch (Exception e) {
                     dataStr = Arrays.toString(le.data());
                 }
@@ -190,10 +210,31 @@ public class RaftHttpServer {
         }
     }
 
+    // Pages through the log: from (default: first retained entry) and limit (default 1000, at most
+    // FULL_LOG_MAX_ENTRIES); nextIndex is where the following page starts.
     private void handleFullLog(HttpExchange exchange) throws IOException {
         try {
+            Map<String, String> q = queryToMap(exchange.getRequestURI().getRawQuery());
+            long from = logManager.getLogBaseIndex() + 1;
+            int limit = 1000;
+            if (q.containsKey("from")) {
+                try {
+                    from = Long.parseLong(q.get("from"));
+                } catch (Exception ignored) {
+                }
+            }
+            if (q.containsKey("limit")) {
+                try {
+                    limit = Integer.parseInt(q.get("limit"));
+                } catch (Exception ignored) {
+                }
+            }
+            limit = Math.max(1, Math.min(limit, FULL_LOG_MAX_ENTRIES));
+
             List<Map<String, Object>> allEntries = new ArrayList<>();
-            List<LogEntry> logEntries = logManager.getAllEntries();
+            List<LogEntry> logEntries = logManager.getEntries(from, limit, FULL_LOG_MAX_BYTES);
+            long nextIndex = logEntries.isEmpty() ? Math.max(from, logManager.getLogBaseIndex() + 1)
+                    : logEntries.get(logEntries.size() - 1).index() + 1;
 
             for (LogEntry le : logEntries) {
                 Map<String, Object> m = new LinkedHashMap<>();
@@ -201,7 +242,7 @@ public class RaftHttpServer {
                 m.put("term", le.term());
                 String dataStr;
                 try {
-                    dataStr = new String(le.data(), StandardCharsets.UTF_8);
+                    dataStr = le.payload().toStringUtf8();
                 } catch (Exception e) {
                     dataStr = Arrays.toString(le.data());
                 }
@@ -210,7 +251,9 @@ public class RaftHttpServer {
             }
 
             StringBuilder sb = new StringBuilder();
-            sb.append("{\"totalEntries\":").append(allEntries.size()).append(",\"entries\":[");
+            sb.append("{\"totalEntries\":").append(allEntries.size())
+                    .append(",\"nextIndex\":").append(nextIndex)
+                    .append(",\"entries\":[");
             boolean first = true;
             for (var e : allEntries) {
                 if (!first)
@@ -246,24 +289,61 @@ public class RaftHttpServer {
         }
     }
 
+    private record Reply(int status, String json) {}
+
+    // Reads are linearizable by default: the leader serves them once a ReadIndex barrier has passed,
+    // and followers redirect to it. consistency=local reads this node's store as it is, which may be
+    // stale.
     private void handleDocGet(HttpExchange exchange) throws IOException {
         Map<String, String> q = queryToMap(exchange.getRequestURI().getRawQuery());
         String collection = q.get("collection");
-        String id = q.get("id");
 
         if (collection == null || collection.isEmpty()) {
             sendJson(exchange, 400, "{\"error\":\"need collection\"}");
             return;
         }
 
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).trim();
+        if ("local".equalsIgnoreCase(q.get("consistency"))) {
+            Reply reply = readDocuments(collection, q, body);
+            sendJson(exchange, reply.status(), reply.json());
+            return;
+        }
+
+        String redirectTarget = exchange.getRequestURI().getPath()
+                + (exchange.getRequestURI().getQuery() != null ? "?" + exchange.getRequestURI().getQuery() : "");
+        BiConsumer<Long, Throwable> answer = (idx, error) -> {
+            try {
+                if (error == null && idx >= 0) {
+                    Reply reply = readDocuments(collection, q, body);
+                    sendJson(exchange, reply.status(), reply.json());
+                } else if (stateManager.isLeader()) {
+                    sendJson(exchange, 503, "{\"error\":\"leadership_not_confirmed\"}");
+                } else {
+                    sendNotLeaderOrFailed(exchange, redirectTarget);
+                }
+            } catch (Exception ex) {
+                System.err.println(nodeId + " failed to send read response: " + ex.getMessage());
+                exchange.close();
+            }
+        };
+        CompletableFuture<Long> barrier = logManager.readIndex();
+        if (barrier.isDone()) {
+            // Lease reads usually pass at once; answer on this thread rather than handing off.
+            barrier.whenComplete(answer);
+        } else {
+            barrier.whenCompleteAsync(answer, executor);
+        }
+    }
+
+    private Reply readDocuments(String collection, Map<String, String> q, String body) {
+        String id = q.get("id");
         if (id != null && !id.isEmpty()) {
             JsonObject doc = documentStore.findById(collection, id);
             if (doc == null) {
-                sendJson(exchange, 404, "{\"error\":\"not_found\"}");
-            } else {
-                sendJson(exchange, 200, gson.toJson(doc));
+                return new Reply(404, "{\"error\":\"not_found\"}");
             }
-            return;
+            return new Reply(200, gson.toJson(doc));
         }
 
         if (q.containsKey("field") && q.containsKey("value")) {
@@ -271,11 +351,9 @@ public class RaftHttpServer {
             String value = q.get("value");
             Query query = new Query().where(field, value);
             List<JsonObject> docs = documentStore.find(collection, query);
-            sendJson(exchange, 200, gson.toJson(docs));
-            return;
+            return new Reply(200, gson.toJson(docs));
         }
 
-        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).trim();
         if (!body.isEmpty()) {
             try {
                 JsonObject root = JsonParser.parseString(body).getAsJsonObject();
@@ -284,14 +362,13 @@ public class RaftHttpServer {
                     query.where(e.getKey(), jsonElementToObject(e.getValue()));
                 }
                 List<JsonObject> docs = documentStore.find(collection, query);
-                sendJson(exchange, 200, gson.toJson(docs));
-                return;
+                return new Reply(200, gson.toJson(docs));
             } catch (Exception ignored) {
             }
         }
 
         List<JsonObject> docs = documentStore.find(collection, new Query().limit(100));
-        sendJson(exchange, 200, gson.toJson(docs));
+        return new Reply(200, gson.toJson(docs));
     }
 
     private void handleDocInsert(HttpExchange exchange) throws IOException {
@@ -333,25 +410,8 @@ public class RaftHttpServer {
         cmd.addProperty("collection", root.get("collection").getAsString());
         cmd.add("document", root.get("document").getAsJsonObject());
 
-        long idx = logManager.appendEntry(gson.toJson(cmd).getBytes(StandardCharsets.UTF_8));
-        if (idx < 0) {
-            Optional<String> maybeLeader = replicationManager.getLikelyLeader();
-            if (maybeLeader.isPresent()) {
-                String leaderAddr = maybeLeader.get();
-                String location = HttpUtils.leaderHttpUrl(leaderAddr, exchange.getRequestURI().getPath()
-                        + (exchange.getRequestURI().getQuery() != null ? "?" + exchange.getRequestURI().getQuery()
-                                : ""));
-                if (location != null) {
-                    exchange.getResponseHeaders().set("Location", location);
-                    String errorBody = "{\"error\":\"not_leader\",\"redirect\":\"" + escapeJson(location) + "\"}";
-                    sendJson(exchange, 307, errorBody);
-                    return;
-                }
-            }
-            sendJson(exchange, 500, "{\"error\":\"not_leader_or_failed\"}");
-            return;
-        }
-        sendJson(exchange, 200, "{\"index\":" + idx + "}");
+        submitCommand(exchange, cmd, exchange.getRequestURI().getPath()
+                + (exchange.getRequestURI().getQuery() != null ? "?" + exchange.getRequestURI().getQuery() : ""));
     }
 
     private void handleDocUpdate(HttpExchange exchange) throws IOException {
@@ -398,25 +458,8 @@ public class RaftHttpServer {
         cmd.addProperty("id", id);
         cmd.add("updates", updates);
 
-        long idx = logManager.appendEntry(gson.toJson(cmd).getBytes(StandardCharsets.UTF_8));
-        if (idx < 0) {
-            Optional<String> maybeLeader = replicationManager.getLikelyLeader();
-            if (maybeLeader.isPresent()) {
-                String leaderAddr = maybeLeader.get();
-                String location = HttpUtils.leaderHttpUrl(leaderAddr, exchange.getRequestURI().getPath()
-                        + (exchange.getRequestURI().getQuery() != null ? "?" + exchange.getRequestURI().getQuery()
-                                : ""));
-                if (location != null) {
-                    exchange.getResponseHeaders().set("Location", location);
-                    String errorBody = "{\"error\":\"not_leader\",\"redirect\":\"" + escapeJson(location) + "\"}";
-                    sendJson(exchange, 307, errorBody);
-                    return;
-                }
-            }
-            sendJson(exchange, 500, "{\"error\":\"not_leader_or_failed\"}");
-            return;
-        }
-        sendJson(exchange, 200, "{\"index\":" + idx + "}");
+        submitCommand(exchange, cmd, exchange.getRequestURI().getPath()
+                + (exchange.getRequestURI().getQuery() != null ? "?" + exchange.getRequestURI().getQuery() : ""));
     }
 
     private void handleDocDelete(HttpExchange exchange) throws IOException {
@@ -446,25 +489,8 @@ public class RaftHttpServer {
         cmd.addProperty("collection", collection);
         cmd.addProperty("id", id);
 
-        long idx = logManager.appendEntry(gson.toJson(cmd).getBytes(StandardCharsets.UTF_8));
-        if (idx < 0) {
-            Optional<String> maybeLeader = replicationManager.getLikelyLeader();
-            if (maybeLeader.isPresent()) {
-                String leaderAddr = maybeLeader.get();
-                String location = HttpUtils.leaderHttpUrl(leaderAddr, exchange.getRequestURI().getPath()
-                        + (exchange.getRequestURI().getQuery() != null ? "?" + exchange.getRequestURI().getQuery()
-                                : ""));
-                if (location != null) {
-                    exchange.getResponseHeaders().set("Location", location);
-                    String errorBody = "{\"error\":\"not_leader\",\"redirect\":\"" + escapeJson(location) + "\"}";
-                    sendJson(exchange, 307, errorBody);
-                    return;
-                }
-            }
-            sendJson(exchange, 500, "{\"error\":\"not_leader_or_failed\"}");
-            return;
-        }
-        sendJson(exchange, 200, "{\"index\":" + idx + "}");
+        submitCommand(exchange, cmd, exchange.getRequestURI().getPath()
+                + (exchange.getRequestURI().getQuery() != null ? "?" + exchange.getRequestURI().getQuery() : ""));
     }
 
     private void handleDocumentIndex(HttpExchange exchange) throws IOException {
@@ -500,23 +526,7 @@ public class RaftHttpServer {
             cmd.addProperty("collection", collection);
             cmd.addProperty("field", field);
 
-            long idx = logManager.appendEntry(gson.toJson(cmd).getBytes(StandardCharsets.UTF_8));
-            if (idx < 0) {
-                Optional<String> maybeLeader = replicationManager.getLikelyLeader();
-                if (maybeLeader.isPresent()) {
-                    String leader = maybeLeader.get();
-                    String location = HttpUtils.leaderHttpUrl(leader, exchange.getRequestURI().getPath());
-                    if (location != null) {
-                        exchange.getResponseHeaders().set("Location", location);
-                        String errorBody = "{\"error\":\"not_leader\",\"redirect\":\"" + escapeJson(location) + "\"}";
-                        sendJson(exchange, 307, errorBody);
-                        return;
-                    }
-                }
-                sendJson(exchange, 500, "{\"error\":\"not_leader_or_failed\"}");
-            } else {
-                sendJson(exchange, 200, "{\"index\":" + idx + "}");
-            }
+            submitCommand(exchange, cmd, exchange.getRequestURI().getPath());
         } catch (Exception ex) {
             sendJson(exchange, 500, "{\"error\":\"" + escapeJson(ex.getMessage()) + "\"}");
         }
@@ -524,6 +534,38 @@ public class RaftHttpServer {
 
     
 
+    // Appends the command without holding an HTTP thread while it commits; the response is written
+    // from the executor once the entry has been applied (or has failed).
+    private void submitCommand(HttpExchange exchange, JsonObject cmd, String redirectTarget) {
+        logManager.appendEntryAsync(gson.toJson(cmd).getBytes(StandardCharsets.UTF_8))
+                .whenCompleteAsync((idx, error) -> {
+                    try {
+                        if (error == null && idx >= 0) {
+                            sendJson(exchange, 200, "{\"index\":" + idx + "}");
+                        } else {
+                            sendNotLeaderOrFailed(exchange, redirectTarget);
+                        }
+                    } catch (IOException ioe) {
+                        System.err.println(nodeId + " failed to send write response: " + ioe.getMessage());
+                        exchange.close();
+                    }
+                }, executor);
+    }
+
+    private void sendNotLeaderOrFailed(HttpExchange exchange, String redirectTarget) throws IOException {
+        Optional<String> maybeLeader = replicationManager.getLikelyLeader();
+        if (maybeLeader.isPresent()) {
+            String location = HttpUtils.leaderHttpUrl(maybeLeader.get(), redirectTarget);
+            if (location != null) {
+                exchange.getResponseHeaders().set("Location", location);
+                String errorBody = "{\"error\":\"not_leader\",\"redirect\":\"" + escapeJson(location) + "\"}";
+                sendJson(exchange, 307, errorBody);
+                return;
+            }
+        }
+        sendJson(exchange, 500, "{\"error\":\"not_leader_or_failed\"}");
+    }
+
     private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
         byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
 
@@ -1,64 +1,176 @@
 package bdsql.consensus;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import bdsql.storage.SnapshotStore;
 import bdsql.storage.WriteAheadLog;
-import bdsql.storage.WriteAheadLog.WALRecord;
 
 public class RaftLogManager {
     private final String nodeId;
     private final WriteAheadLog wal;
-    private final List<LogEntry> log = Collections.synchronizedList(new ArrayList<>());
-    private final Consumer<LogEntry> applyFn;
-    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pendingCommits = new ConcurrentHashMap<>();
+    // The log itself lives in the WAL. In memory we keep every entry's term in compact runs and only
+    // the most recent payloads, bounded by bytes; both are guarded by logLock.
+    private final Object logLock = new Object();
+    private final LogTermIndex terms = new LogTermIndex(0, 0);
+    private final LogTailCache cache;
+    // Applies a run of committed entries to the state machine; it sees each entry exactly once.
+    private final Consumer<List<LogEntry>> applyFn;
+    private final ConcurrentHashMap<Long, CompletableFuture<Long>> pendingCommits = new ConcurrentHashMap<>();
+    // Reads waiting for lastApplied to reach their read index, keyed by that index. Guarded by itself.
+    private final TreeMap<Long, List<CompletableFuture<Long>>> readWaiters = new TreeMap<>();
+    private final ExecutorService commitExecutor;
+    private final ExecutorService applyExecutor;
+    private final AtomicBoolean applyScheduled = new AtomicBoolean();
+    private static final int MAX_APPLY_BATCH = 4096;
+    private volatile CommandBatcher batcher;
 
     private volatile long commitIndex = 0;
     private volatile long lastApplied = 0;
     private final long commitTimeoutMs = 3000L;
 
+    private final SnapshotStore snapshotStore;
+    private final SnapshotProvider snapshotProvider;
+    private final long snapshotThreshold;
+    // Entries kept in the log behind each snapshot, so that followers only slightly behind it can
+    // still be sent entries instead of the whole snapshot.
+    private volatile long snapshotTrailingEntries = 0;
+    private final Object applyLock = new Object();
+    private volatile long snapshotIndex = 0;
+    private volatile long snapshotTerm = 0;
+
     private final RaftStateManager stateManager;
     private final RaftReplicationManager replicationManager;
 
     public RaftLogManager(
             String nodeId,
             WriteAheadLog wal,
-            Consumer<LogEntry> applyFn,
+            Consumer<List<LogEntry>> applyFn,
             RaftStateManager stateManager,
-            RaftReplicationManager replicationManager) throws IOException {
+            RaftReplicationManager replicationManager,
+            SnapshotStore snapshotStore,
+            SnapshotProvider snapshotProvider,
+            long snapshotThreshold,
+            long cacheBytes) throws IOException {
         this.nodeId = nodeId;
         this.wal = wal;
         this.applyFn = applyFn;
         this.stateManager = stateManager;
         this.replicationManager = replicationManager;
+        this.snapshotStore = snapshotStore;
+        this.snapshotProvider = snapshotProvider;
+        this.snapshotThreshold = snapshotThreshold;
+        this.cache = new LogTailCache(cacheBytes);
+        this.commitExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setName("raft-commit-" + nodeId);
+            return t;
+        });
+        this.applyExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setName("raft-apply-" + nodeId);
+            return t;
+        });
 
         initializeLog();
+        wal.setDurabilityListener(this::onLocalDurable);
     }
 
     private void initializeLog() throws IOException {
-        log.clear();
-        log.add(new LogEntry(0, 0, new byte[0]));
-
-        List<WALRecord> records = wal.readAll();
-        for (WALRecord r : records) {
-            long expected = log.size();
-            if (r.index() != expected) {
-                System.err.println(nodeId + " WAL unexpected index: " + r.index() + " expected " + expected
-                        + " — truncating remaining WAL");
-                try {
-                    wal.truncateSuffixFrom(expected - 1);
-                } catch (IOException ioe) {
-                    System.err.println(nodeId + " failed to truncate WAL after unexpected index: " + ioe.getMessage());
+        SnapshotStore.Snapshot snapshot = snapshotProvider != null ? snapshotStore.latest() : null;
+        long persistedApplied = snapshotProvider != null ? snapshotProvider.getAppliedIndex() : 0;
+        if (snapshot != null) {
+            snapshotIndex = snapshot.lastIncludedIndex();
+            snapshotTerm = snapshot.lastIncludedTerm();
+            // The state machine is durable on its own; the snapshot is only needed if it is behind.
+            if (persistedApplied < snapshotIndex) {
+                try (InputStream in = snapshotStore.openPayload(snapshot)) {
+                    snapshotProvider.restoreSnapshot(in, snapshotIndex);
                 }
-                break;
+                persistedApplied = snapshotIndex;
+                System.out.println(nodeId + " restored snapshot at index " + snapshotIndex + " term " + snapshotTerm);
+            }
+            commitIndex = snapshotIndex;
+            lastApplied = snapshotIndex;
+
+            // The WAL must continue right after the snapshot; if it does not (e.g. a crash between
+            // installing a snapshot and resetting the log), its contents are stale.
+            WriteAheadLog.WALRecord last = wal.getLastIndex() >= snapshotIndex && wal.getFirstIndex() <= snapshotIndex
+                    ? wal.read(snapshotIndex) : null;
+            boolean continues = wal.getFirstIndex() == snapshotIndex + 1
+                    || (last != null && last.term() == snapshotTerm);
+            if (!continues) {
+                wal.resetTo(snapshotIndex, snapshotTerm);
             }
-            log.add(new LogEntry((int) r.index(), r.term(), r.data()));
+        } else if (wal.getFirstIndex() > 1) {
+            System.err.println(nodeId + " WAL starts at index " + wal.getFirstIndex()
+                    + " but no snapshot was found — entries before it are lost");
+            snapshotIndex = wal.getFirstIndex() - 1;
+            commitIndex = snapshotIndex;
+            lastApplied = snapshotIndex;
+        }
+
+        // Entries the WAL kept behind the snapshot stay readable, so followers just behind it can
+        // still be sent entries.
+        long baseIndex = snapshotIndex;
+        long baseTerm = snapshotTerm;
+        if (wal.getFirstIndex() <= snapshotIndex) {
+            baseIndex = wal.getFirstIndex() - 1;
+            baseTerm = wal.getPrevTerm();
+        }
+        terms.reset(baseIndex, baseTerm);
+        cache.clear();
+
+        // A cached entry costs at least as much as its WAL record, so only records within the last
+        // cache.maxBytes() of the log can end up in the cache; older ones are not copied at all.
+        long truncateAfter = -1;
+        try (WriteAheadLog.Cursor cursor = wal.openCursor(baseIndex + 1)) {
+            while (cursor.next()) {
+                long expected = terms.lastIndex() + 1;
+                if (cursor.index() != expected) {
+                    System.err.println(nodeId + " WAL unexpected index: " + cursor.index() + " expected " + expected
+                            + " — truncating remaining WAL");
+                    truncateAfter = expected - 1;
+                    break;
+                }
+                terms.append(cursor.index(), cursor.term());
+                if (cursor.remainingBytes() <= cache.maxBytes()) {
+                    cache.append(cursor.index(), UnsafeByteOperations.unsafeWrap(cursor.copyData()));
+                }
+            }
+        }
+        if (truncateAfter >= 0) {
+            try {
+                wal.truncateSuffixFrom(truncateAfter);
+            } catch (IOException ioe) {
+                System.err.println(nodeId + " failed to truncate WAL after unexpected index: " + ioe.getMessage());
+            }
+        }
+
+        // Only committed entries are ever applied, so everything the state machine already holds
+        // is committed and must not be replayed.
+        if (persistedApplied > lastApplied) {
+            lastApplied = persistedApplied;
+            commitIndex = Math.max(commitIndex, persistedApplied);
+            System.out.println(nodeId + " state machine is at index " + persistedApplied + ", skipping replay");
         }
     }
 
@@ -70,72 +182,298 @@ public class RaftLogManager {
         return lastApplied;
     }
 
-    public int getLogSize() {
-        synchronized (log) {
-            return log.size();
+    public long getDurableIndex() {
+        return wal.getDurableIndex();
+    }
+
+    public long getSyncedIndex() {
+        return wal.getSyncedIndex();
+    }
+
+    public String getDurabilityPolicy() {
+        return wal.getDurabilityPolicy().toString();
+    }
+
+    public long getSnapshotIndex() {
+        return snapshotIndex;
+    }
+
+    // The last index no longer in the log; entries after it can still be read. Never above the
+    // snapshot index, and below it by up to the trailing window.
+    public long getLogBaseIndex() {
+        synchronized (logLock) {
+            return terms.baseIndex();
         }
     }
 
-    public LogEntry getEntry(int index) {
-        synchronized (log) {
-            if (index >= 0 && index < log.size()) {
-                return log.get(index);
-            }
-            return null;
+    public void setSnapshotTrailingEntries(long entries) {
+        this.snapshotTrailingEntries = Math.max(0, entries);
+    }
+
+    public SnapshotStore.Snapshot getLatestSnapshot() throws IOException {
+        return snapshotStore.latest();
+    }
+
+    // One past the last log index, counting entries already folded into the snapshot.
+    public long getLogSize() {
+        synchronized (logLock) {
+            return terms.lastIndex() + 1;
         }
     }
 
-    public List<LogEntry> getRecentEntries(int count) {
-        synchronized (log) {
-            int size = log.size();
-            int start = Math.max(0, size - count);
-            return new ArrayList<>(log.subList(start, size));
+    public long getLastLogTerm() {
+        synchronized (logLock) {
+            return terms.lastTerm();
+        }
+    }
+
+    // Returns -1 for entries compacted into the snapshot, except the last one it covers.
+    public long getTerm(long index) {
+        synchronized (logLock) {
+            return terms.termAt(index);
+        }
+    }
+
+    public long getLastIndexOfTerm(long term) {
+        synchronized (logLock) {
+            return terms.lastIndexOfTerm(term);
+        }
+    }
+
+    public long getCacheBytes() {
+        synchronized (logLock) {
+            return cache.bytes();
         }
     }
 
-    public List<LogEntry> getAllEntries() {
-        synchronized (log) {
-            return new ArrayList<>(log);
+    // Returns null for entries compacted into the snapshot or past the end of the log.
+    public LogEntry getEntry(long index) {
+        List<LogEntry> one = getEntries(index, 1);
+        return one.isEmpty() || one.get(0).index() != index ? null : one.get(0);
+    }
+
+    public List<LogEntry> getEntries(long from, int max) {
+        return getEntries(from, max, Long.MAX_VALUE);
+    }
+
+    // Returns up to max consecutive entries starting at from, stopping before the payloads exceed
+    // maxBytes. The first entry is always returned, so one oversized entry cannot stall a follower.
+    // Payloads come from the tail cache when possible; older ones are copied straight out of the
+    // WAL's mapped segments in a single pass outside the log lock that ends once the budget is spent.
+    public List<LogEntry> getEntries(long from, int max, long maxBytes) {
+        List<LogEntry> cached = new ArrayList<>();
+        long missEnd;
+        synchronized (logLock) {
+            from = Math.max(from, terms.baseIndex() + 1);
+            long last = Math.min(terms.lastIndex(), from + Math.max(0, max) - 1);
+            if (from > last) {
+                return new ArrayList<>();
+            }
+            long cacheFirst = cache.firstIndex();
+            missEnd = cacheFirst < 0 ? last : Math.min(last, cacheFirst - 1);
+            long cachedFrom = Math.max(from, missEnd + 1);
+            int n = cache.countWithin(cachedFrom, (int) (last - cachedFrom + 1), maxBytes);
+            for (long i = cachedFrom; i < cachedFrom + n; i++) {
+                cached.add(new LogEntry(i, terms.termAt(i), cache.get(i)));
+            }
+        }
+        if (from > missEnd) {
+            return cached;
+        }
+
+        List<LogEntry> read = new ArrayList<>((int) Math.min(missEnd - from + 1, 1024));
+        long bytes = 0;
+        // The cursor holds off truncation and compaction while it is open, so it must be closed
+        // before logLock is taken below.
+        try (WriteAheadLog.Cursor cursor = wal.openCursor(from)) {
+            while (read.size() < missEnd - from + 1 && cursor.next()) {
+                int size = cursor.data().remaining();
+                if (!read.isEmpty() && bytes + size > maxBytes) {
+                    break;
+                }
+                bytes += size;
+                read.add(new LogEntry(cursor.index(), cursor.term(), ByteString.copyFrom(cursor.data())));
+            }
+        } catch (IOException ioe) {
+            System.err.println(nodeId + " failed to read log entries from WAL at " + from + ": " + ioe.getMessage());
+            return new ArrayList<>();
         }
+        List<LogEntry> out = new ArrayList<>(read.size() + cached.size());
+        synchronized (logLock) {
+            // The log may have been truncated or compacted while we were reading.
+            long expected = from;
+            for (LogEntry e : read) {
+                if (e.index() != expected || terms.termAt(e.index()) != e.term()) {
+                    return out;
+                }
+                out.add(e);
+                expected++;
+            }
+            if (expected != missEnd + 1) {
+                return out;
+            }
+        }
+        for (LogEntry e : cached) {
+            bytes += e.payload().size();
+            if (bytes > maxBytes) {
+                break;
+            }
+            out.add(e);
+        }
+        return out;
+    }
+
+    public List<LogEntry> getRecentEntries(int count) {
+        long size = getLogSize();
+        return getEntries(size - count, count);
     }
 
     public long appendEntry(byte[] data) {
+        return appendEntryAsync(data).join();
+    }
+
+    // Collects concurrent commands for up to windowMicros (or until a cap) so they share one WAL
+    // write, one fsync and one replication round. A window of 0 keeps every command on its own.
+    public void enableBatching(long windowMicros, int maxCommands, long maxBytes) {
+        if (windowMicros > 0) {
+            batcher = new CommandBatcher(nodeId, windowMicros, maxCommands, maxBytes, this::appendCommands);
+        }
+    }
+
+    // Appends a command and returns at once. The future completes with the entry's index once it has
+    // been applied, or with -1 if this node is not the leader, the write fails, leadership is lost or
+    // the entry is not committed within commitTimeoutMs. Nothing blocks while the entry is in flight:
+    // replication starts immediately and the local WAL reports durability through a listener. The log
+    // takes ownership of data, which must not be modified afterwards.
+    public CompletableFuture<Long> appendEntryAsync(byte[] data) {
         if (!stateManager.isLeader()) {
             System.err.println("appendEntry: not leader");
-            return -1;
+            return CompletableFuture.completedFuture(-1L);
+        }
+
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        f.completeOnTimeout(-1L, commitTimeoutMs, TimeUnit.MILLISECONDS);
+        CommandBatcher.Command command = new CommandBatcher.Command(data, f);
+        CommandBatcher b = batcher;
+        if (b != null) {
+            b.submit(command);
+        } else {
+            appendCommands(List.of(command));
+        }
+        return f;
+    }
+
+    private void appendCommands(List<CommandBatcher.Command> commands) {
+        if (!stateManager.isLeader()) {
+            commands.forEach(c -> c.future().complete(-1L));
+            return;
         }
 
-        long idx;
         long term = stateManager.getCurrentTerm();
+        List<byte[]> payloads = new ArrayList<>(commands.size());
+        for (CommandBatcher.Command c : commands) {
+            payloads.add(c.data());
+        }
 
-        synchronized (log) {
+        long first;
+        synchronized (logLock) {
             try {
-                long appended = wal.appendWithExpectedIndex(wal.getLastIndex() + 1, term, data);
-                idx = appended;
-                log.add(new LogEntry((int) appended, term, data));
-                replicationManager.updateMatchIndex(nodeId, appended);
-                replicationManager.updateNextIndex(nodeId, appended + 1);
+                first = wal.getLastIndex() + 1;
+                wal.enqueueAll(first, term, payloads);
+                for (int i = 0; i < commands.size(); i++) {
+                    long idx = first + i;
+                    terms.append(idx, term);
+                    cache.append(idx, UnsafeByteOperations.unsafeWrap(payloads.get(i)));
+                    pendingCommits.put(idx, commands.get(i).future());
+                }
             } catch (IOException ioe) {
                 System.err.println(nodeId + " failed to persist WAL entry: " + ioe.getMessage());
-                return -1;
+                commands.forEach(c -> c.future().complete(-1L));
+                return;
             }
         }
 
-        CompletableFuture<Boolean> f = new CompletableFuture<>();
-        pendingCommits.put(idx, f);
-
+        // Ship the batch to followers while our own flusher is still writing it. The leader only
+        // counts toward the quorum once onLocalDurable has advanced its own match index.
         replicationManager.triggerReplication();
-        tryCommit();
 
-        try {
-            boolean ok = f.get(commitTimeoutMs, TimeUnit.MILLISECONDS);
-            pendingCommits.remove(idx);
-            return ok ? idx : -1;
-        } catch (Exception e) {
-            pendingCommits.remove(idx);
-            System.err.println(nodeId + " appendEntry timeout/failed for idx " + idx + ": " + e.getMessage());
-            return -1;
+        for (int i = 0; i < commands.size(); i++) {
+            long idx = first + i;
+            CompletableFuture<Long> f = commands.get(i).future();
+            f.whenComplete((result, error) -> {
+                pendingCommits.remove(idx, f);
+                if (error != null || result < 0) {
+                    System.err.println(nodeId + " appendEntry timeout/failed for idx " + idx);
+                }
+            });
+        }
+    }
+
+    // Raft ReadIndex: a linearizable read barrier that writes nothing to the log. Completes with the
+    // read index once a majority has confirmed this node is still leader and everything committed
+    // when the read arrived has been applied, so a local read that follows sees every write
+    // acknowledged before it. While a read lease is held the confirmation round is skipped. Completes
+    // with -1 if this node is not the leader, has not yet committed an entry of its own term, or
+    // cannot confirm leadership.
+    public CompletableFuture<Long> readIndex() {
+        if (!stateManager.isLeader()) {
+            return CompletableFuture.completedFuture(-1L);
+        }
+        long term = stateManager.getCurrentTerm();
+        long index;
+        synchronized (logLock) {
+            index = commitIndex;
+            // A new leader only knows the full commit index once its election no-op has committed.
+            if (terms.termAt(index) != term) {
+                return CompletableFuture.completedFuture(-1L);
+            }
+        }
+        if (replicationManager.hasReadLease()) {
+            // No other leader can exist inside the lease, so the commit index is already current.
+            return awaitApplied(index);
         }
+        return replicationManager.confirmLeadership().thenCompose(confirmed -> {
+            if (!confirmed || stateManager.getCurrentTerm() != term) {
+                return CompletableFuture.completedFuture(-1L);
+            }
+            return awaitApplied(index);
+        });
+    }
+
+    private CompletableFuture<Long> awaitApplied(long index) {
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        synchronized (readWaiters) {
+            if (lastApplied < index) {
+                readWaiters.computeIfAbsent(index, k -> new ArrayList<>()).add(f);
+                f.completeOnTimeout(-1L, commitTimeoutMs, TimeUnit.MILLISECONDS);
+                return f;
+            }
+        }
+        f.complete(index);
+        return f;
+    }
+
+    private void releaseReads() {
+        List<CompletableFuture<Long>> ready = new ArrayList<>();
+        long applied = lastApplied;
+        synchronized (readWaiters) {
+            var head = readWaiters.headMap(applied, true);
+            head.values().forEach(ready::addAll);
+            head.clear();
+        }
+        for (CompletableFuture<Long> f : ready) {
+            f.complete(applied);
+        }
+    }
+
+    private void onLocalDurable(long durableIndex) {
+        commitExecutor.execute(() -> {
+            if (!stateManager.isLeader()) {
+                return;
+            }
+            replicationManager.advanceMatchIndex(nodeId, durableIndex);
+            tryCommit();
+        });
     }
 
     public synchronized AppendEntriesResult handleAppendEntries(
@@ -144,13 +482,18 @@ public class RaftLogManager {
             List<bdsql.consensus.rpc.LogEntry> entries,
             long leaderCommit) {
 
-        synchronized (log) {
-            if (prevIndex >= log.size()) {
-                return new AppendEntriesResult(false, "prevIndex out of bounds");
+        synchronized (logLock) {
+            if (prevIndex > terms.lastIndex()) {
+                return new AppendEntriesResult(false, "prevIndex out of bounds", 0, terms.lastIndex() + 1,
+                        terms.lastIndex());
             }
 
-            if (log.get((int) prevIndex).term() != prevTerm) {
-                return new AppendEntriesResult(false, "term mismatch at prevIndex");
+            // Anything at or below the snapshot is committed, so it necessarily matches the leader.
+            long termAtPrev = terms.termAt(prevIndex);
+            if (prevIndex >= snapshotIndex && termAtPrev != prevTerm) {
+                // Point the leader at the start of our conflicting term so it can skip it whole.
+                return new AppendEntriesResult(false, "term mismatch at prevIndex", termAtPrev,
+                        terms.firstIndexOfRun(prevIndex), terms.lastIndex());
             }
 
             for (int i = 0; i < entries.size(); i++) {
@@ -158,13 +501,16 @@ public class RaftLogManager {
                 long incomingIdx = e.getIndex();
                 long incomingTerm = e.getTerm();
 
-                if (incomingIdx < log.size()) {
-                    if (log.get((int) incomingIdx).term() != incomingTerm) {
-                        while (log.size() > incomingIdx) {
-                            log.remove(log.size() - 1);
-                        }
+                if (incomingIdx <= snapshotIndex) {
+                    continue;
+                }
+
+                if (incomingIdx <= terms.lastIndex()) {
+                    if (terms.termAt(incomingIdx) != incomingTerm) {
+                        terms.truncateAfter(incomingIdx - 1);
+                        cache.truncateAfter(incomingIdx - 1);
                         try {
-                            wal.truncateSuffixFrom(log.size() - 1);
+                            wal.truncateSuffixFrom(incomingIdx - 1);
                         } catch (IOException ioe) {
                             System.err.println(
                                     nodeId + " failed to truncate WAL during conflict resolution: " + ioe.getMessage());
@@ -173,17 +519,21 @@ public class RaftLogManager {
                     }
                 }
 
-                if (incomingIdx >= log.size()) {
-                    byte[] data = e.getData().toByteArray();
+                if (incomingIdx > terms.lastIndex()) {
+                    // The parsed ByteString is immutable: the WAL copies it straight into its staging
+                    // buffer and the cache keeps the same instance.
+                    ByteString data = e.getData();
                     try {
-                        long appended = wal.appendWithExpectedIndex(wal.getLastIndex() + 1, incomingTerm, data);
+                        long appended = wal.enqueue(wal.getLastIndex() + 1, incomingTerm,
+                                data.asReadOnlyByteBuffer());
                         if (appended != incomingIdx) {
                             System.err.println(nodeId + " WAL appended index mismatch: appended=" + appended
                                     + " expected=" + incomingIdx);
                             wal.truncateSuffixFrom(incomingIdx - 1);
                             return new AppendEntriesResult(false, "index mismatch");
                         }
-                        log.add(new LogEntry((int) appended, incomingTerm, data));
+                        terms.append(appended, incomingTerm);
+                        cache.append(appended, data);
                     } catch (IOException ioe) {
                         System.err.println(nodeId + " WAL append failed for incoming entry: " + ioe.getMessage());
                         return new AppendEntriesResult(false, "WAL append failed");
@@ -191,80 +541,253 @@ public class RaftLogManager {
                 }
             }
 
-            if (leaderCommit > commitIndex) {
-                commitIndex = Math.min(leaderCommit, log.size() - 1);
-                applyEntries();
+            try {
+                wal.awaitDurable(wal.getLastIndex());
+            } catch (IOException ioe) {
+                System.err.println(nodeId + " WAL flush failed for incoming entries: " + ioe.getMessage());
+                return new AppendEntriesResult(false, "WAL append failed");
+            }
+
+            // Only entries this request matched against the leader's log may be committed; anything
+            // past them can be a stale suffix the leader has not checked yet.
+            long lastNewIndex = prevIndex + entries.size();
+            if (leaderCommit > commitIndex && lastNewIndex > commitIndex) {
+                commitIndex = Math.min(leaderCommit, lastNewIndex);
             }
         }
 
+        applyEntries();
         return new AppendEntriesResult(true, null);
     }
 
-    public void tryCommit() {
-        if (!stateManager.isLeader()) {
-            return;
+    // Commit index from a heartbeat, already capped by the leader at what this follower holds. It is
+    // taken on the commit thread because logLock can be held across a WAL flush, and dropped if the
+    // term moved on in between, since a newer leader may have replaced those entries.
+    public void advanceCommitIndexFromLeader(long term, long leaderCommit) {
+        commitExecutor.execute(() -> {
+            synchronized (logLock) {
+                if (term != stateManager.getCurrentTerm() || leaderCommit <= commitIndex) {
+                    return;
+                }
+                commitIndex = Math.min(leaderCommit, terms.lastIndex());
+            }
+            applyEntries();
+        });
+    }
+
+    // Takes one chunk of a snapshot streamed by the leader. Once the last chunk is in, the state
+    // machine is replaced and the log is either trimmed (if it already extends past the snapshot
+    // with a matching entry) or discarded.
+    public synchronized boolean handleInstallSnapshot(
+            long lastIncludedIndex,
+            long lastIncludedTerm,
+            long offset,
+            ByteBuffer data,
+            boolean done) {
+        if (snapshotProvider == null) {
+            return false;
+        }
+        if (lastIncludedIndex <= snapshotIndex) {
+            return true;
         }
 
-        long lastIndex;
-        synchronized (log) {
-            lastIndex = log.size() - 1;
+        SnapshotStore.Snapshot snapshot;
+        try {
+            snapshot = snapshotStore.receiveChunk(lastIncludedIndex, lastIncludedTerm, offset, data, done);
+        } catch (IOException ioe) {
+            System.err.println(nodeId + " failed to store snapshot chunk: " + ioe.getMessage());
+            return false;
+        }
+        if (snapshot == null) {
+            return true;
         }
 
-        for (long n = commitIndex + 1; n <= lastIndex; n++) {
-            final long candidate = n;
-            long termAtN = log.get((int) candidate).term();
+        synchronized (applyLock) {
+            try (InputStream in = snapshotStore.openPayload(snapshot)) {
+                snapshotProvider.restoreSnapshot(in, lastIncludedIndex);
+            } catch (IOException ioe) {
+                System.err.println(nodeId + " failed to restore snapshot: " + ioe.getMessage());
+                return false;
+            }
 
-            if (termAtN != stateManager.getCurrentTerm()) {
-                continue;
+            synchronized (logLock) {
+                try {
+                    if (terms.termAt(lastIncludedIndex) == lastIncludedTerm) {
+                        compactLog(lastIncludedIndex, lastIncludedTerm);
+                        snapshotIndex = lastIncludedIndex;
+                        snapshotTerm = lastIncludedTerm;
+                        wal.compactUpTo(lastIncludedIndex);
+                    } else {
+                        terms.reset(lastIncludedIndex, lastIncludedTerm);
+                        cache.clear();
+                        snapshotIndex = lastIncludedIndex;
+                        snapshotTerm = lastIncludedTerm;
+                        wal.resetTo(lastIncludedIndex, lastIncludedTerm);
+                    }
+                } catch (IOException ioe) {
+                    System.err.println(nodeId + " failed to compact WAL after snapshot install: " + ioe.getMessage());
+                }
             }
+            commitIndex = Math.max(commitIndex, lastIncludedIndex);
+            lastApplied = lastIncludedIndex;
+            releaseReads();
+            System.out.println(nodeId + " installed snapshot at index " + lastIncludedIndex
+                    + " term " + lastIncludedTerm);
+        }
+        applyEntries();
+        return true;
+    }
 
-            int replicaCount = replicationManager.countReplicasWithIndex(candidate);
+    public void tryCommit() {
+        if (!stateManager.isLeader()) {
+            return;
+        }
 
-            if (replicaCount >= replicationManager.getMajorityCount()) {
+        long candidate = replicationManager.quorumMatchIndex();
+        boolean advanced = false;
+        synchronized (logLock) {
+            candidate = Math.min(candidate, terms.lastIndex());
+            // Terms never decrease along the log, so if the quorum entry is from an older term no
+            // entry at or below it is from ours and nothing new can be committed by counting.
+            if (candidate > commitIndex && terms.termAt(candidate) == stateManager.getCurrentTerm()) {
                 commitIndex = candidate;
-                applyEntries();
+                advanced = true;
             }
         }
+        if (advanced) {
+            // Followers learn the new commit index on their streams without waiting for a heartbeat.
+            replicationManager.triggerReplication();
+        }
+        applyEntries();
     }
 
+    // Hands newly committed entries to the apply thread. Notifications that arrive while a drain is
+    // already scheduled are folded into it.
     public void applyEntries() {
-        while (lastApplied < commitIndex) {
-            lastApplied++;
-            LogEntry e;
-            synchronized (log) {
-                e = log.get((int) lastApplied);
-            }
+        if (applyScheduled.compareAndSet(false, true)) {
             try {
-                applyFn.accept(e);
-            } catch (Exception ex) {
-                System.err.println("apply failed: " + ex.getMessage());
+                applyExecutor.execute(this::drainCommitted);
+            } catch (RejectedExecutionException e) {
+                applyScheduled.set(false);
             }
+        }
+    }
 
-            CompletableFuture<Boolean> f = pendingCommits.remove(lastApplied);
-            if (f != null) {
-                f.complete(Boolean.TRUE);
+    private void drainCommitted() {
+        applyScheduled.set(false);
+        synchronized (applyLock) {
+            while (lastApplied < commitIndex) {
+                List<LogEntry> batch = getEntries(lastApplied + 1,
+                        (int) Math.min(commitIndex - lastApplied, MAX_APPLY_BATCH));
+                if (batch.isEmpty()) {
+                    System.err.println(nodeId + " cannot apply entry " + (lastApplied + 1) + ": not in the log");
+                    break;
+                }
+                try {
+                    applyFn.accept(batch);
+                } catch (Exception ex) {
+                    System.err.println("apply failed: " + ex.getMessage());
+                }
+                lastApplied = batch.get(batch.size() - 1).index();
+
+                for (LogEntry e : batch) {
+                    CompletableFuture<Long> f = pendingCommits.remove(e.index());
+                    if (f != null) {
+                        f.complete(e.index());
+                    }
+                }
+                releaseReads();
             }
+            maybeSnapshot();
         }
     }
 
+    // Caller must hold applyLock, so the state machine is exactly at lastApplied while it is exported.
+    private void maybeSnapshot() {
+        if (snapshotProvider == null || snapshotThreshold <= 0 || lastApplied - snapshotIndex < snapshotThreshold) {
+            return;
+        }
+        long index = lastApplied;
+        long term;
+        synchronized (logLock) {
+            term = terms.termAt(index);
+        }
+        try {
+            long start = System.nanoTime();
+            SnapshotStore.Snapshot snapshot = snapshotStore.write(index, term, snapshotProvider::writeSnapshot);
+            long compactTo;
+            synchronized (logLock) {
+                compactTo = Math.max(terms.baseIndex(), index - snapshotTrailingEntries);
+                if (compactTo > terms.baseIndex()) {
+                    compactLog(compactTo, terms.termAt(compactTo));
+                }
+                snapshotIndex = index;
+                snapshotTerm = term;
+            }
+            int dropped = wal.compactUpTo(compactTo);
+            System.out.println(nodeId + " took snapshot at index " + index + " (" + snapshot.size() + " bytes, "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms), dropped " + dropped + " WAL segments");
+        } catch (IOException ioe) {
+            System.err.println(nodeId + " snapshot at index " + index + " failed: " + ioe.getMessage());
+        }
+    }
+
+    // Caller must hold logLock. Drops every entry up to index, which becomes the new base.
+    private void compactLog(long index, long term) {
+        terms.compactTo(index, term);
+        cache.evictThrough(index);
+    }
+
     public void clearPendingCommits() {
         for (var entry : pendingCommits.entrySet()) {
-            entry.getValue().complete(Boolean.FALSE);
+            entry.getValue().complete(-1L);
         }
         pendingCommits.clear();
     }
 
     public void close() throws IOException {
+        CommandBatcher b = batcher;
+        if (b != null) {
+            b.shutdown();
+        }
+        commitExecutor.shutdownNow();
+        // Let an in-flight batch finish its state machine commit rather than interrupting it.
+        applyExecutor.shutdown();
+        try {
+            applyExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         wal.close();
     }
 
+    public interface SnapshotProvider {
+        void writeSnapshot(OutputStream out) throws IOException;
+        // Replaces the state machine with the snapshot and records lastIncludedIndex as applied.
+        void restoreSnapshot(InputStream in, long lastIncludedIndex) throws IOException;
+        // Index of the last entry reflected in the state machine's durable state, or 0 if unknown.
+        long getAppliedIndex();
+    }
+
     public static class AppendEntriesResult {
         private final boolean success;
         private final String error;
 
+        private final long conflictTerm;
+        private final long conflictIndex;
+        private final long lastLogIndex;
+
         public AppendEntriesResult(boolean success, String error) {
+            this(success, error, 0, 0, 0);
+        }
+
+        public AppendEntriesResult(boolean success, String error, long conflictTerm, long conflictIndex,
+                long lastLogIndex) {
             this.success = success;
             this.error = error;
+            this.conflictTerm = conflictTerm;
+            this.conflictIndex = conflictIndex;
+            this.lastLogIndex = lastLogIndex;
         }
 
         public boolean isSuccess() {
@@ -274,5 +797,17 @@ public class RaftLogManager {
         public String getError() {
             return error;
         }
+
+        public long getConflictTerm() {
+            return conflictTerm;
+        }
+
+        public long getConflictIndex() {
+            return conflictIndex;
+        }
+
+        public long getLastLogIndex() {
+            return lastLogIndex;
+        }
     }
 }
\ No newline at end of file
@@ -1,8 +1,11 @@
 package bdsql.consensus;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.function.Consumer;
 
 import com.google.gson.JsonObject;
@@ -10,12 +13,18 @@ import com.google.gson.JsonParser;
 
 import bdsql.consensus.rpc.AppendEntriesRequest;
 import bdsql.consensus.rpc.AppendEntriesResponse;
+import bdsql.consensus.rpc.HeartbeatRequest;
+import bdsql.consensus.rpc.HeartbeatResponse;
+import bdsql.consensus.rpc.InstallSnapshotRequest;
+import bdsql.consensus.rpc.InstallSnapshotResponse;
 import bdsql.consensus.rpc.RaftGrpc;
 import bdsql.consensus.rpc.RequestVoteRequest;
 import bdsql.consensus.rpc.RequestVoteResponse;
 import bdsql.storage.BTreeDocumentStore;
+import bdsql.storage.DurabilityPolicy;
 import bdsql.storage.KeyValueStore;
 import bdsql.storage.PersistentStateStore;
+import bdsql.storage.SnapshotStore;
 import bdsql.storage.WriteAheadLog;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
@@ -50,19 +59,60 @@ public class RaftNode {
         this.kvStore = new KeyValueStore(storageDir.resolve("state"));
 
         PersistentStateStore persistentStateStore = new PersistentStateStore(storageDir);
-        WriteAheadLog wal = new WriteAheadLog(storageDir.resolve("wal"));
+        DurabilityPolicy durability = DurabilityPolicy.parse(System.getProperty("bdsql.wal.durability", "always"));
+        WriteAheadLog wal = new WriteAheadLog(storageDir.resolve("wal"), WriteAheadLog.DEFAULT_SEGMENT_BYTES,
+                durability);
 
         this.documentStore = new BTreeDocumentStore(storageDir.resolve("documents"));
+        SnapshotStore snapshotStore = new SnapshotStore(storageDir.resolve("snapshots"));
+        long snapshotThreshold = Long.getLong("bdsql.snapshot.threshold", 10_000L);
+        long logCacheBytes = Long.getLong("bdsql.log.cacheBytes", 64L * 1024 * 1024);
 
         this.stateManager = new RaftStateManager(id, host, port, persistentStateStore);
 
         this.replicationManager = new RaftReplicationManager(id, clusterInfo, stateManager);
 
-        Consumer<LogEntry> finalApplyFn = applyFn != null ? applyFn : createDocumentApplyFunction();
+        Consumer<List<LogEntry>> finalApplyFn;
+        if (applyFn != null) {
+            finalApplyFn = batch -> {
+                for (LogEntry entry : batch) {
+                    // Leaders append an empty entry on election; it carries no command.
+                    if (entry.payload().isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        applyFn.accept(entry);
+                    } catch (Exception ex) {
+                        System.err.println(id + " apply failed: " + ex.getMessage());
+                    }
+                }
+            };
+        } else {
+            Consumer<LogEntry> documentApplyFn = createDocumentApplyFunction();
+            finalApplyFn = batch -> documentStore.runBatch(batch.get(batch.size() - 1).index(),
+                    () -> batch.forEach(documentApplyFn));
+        }
 
-        this.logManager = new RaftLogManager(id, wal, finalApplyFn, stateManager, replicationManager);
+        // Snapshots capture the document store, so they are only taken when it is the state machine.
+        RaftLogManager.SnapshotProvider snapshotProvider = applyFn == null ? new DocumentSnapshotProvider() : null;
+
+        this.logManager = new RaftLogManager(id, wal, finalApplyFn, stateManager, replicationManager, snapshotStore,
+                snapshotProvider, snapshotThreshold, logCacheBytes);
+
+        logManager.setSnapshotTrailingEntries(Long.getLong("bdsql.snapshot.trailingEntries", 1000L));
+        logManager.enableBatching(
+                Long.getLong("bdsql.batch.windowMicros", 200L),
+                Integer.getInteger("bdsql.batch.maxCommands", 256),
+                Long.getLong("bdsql.batch.maxBytes", 1024L * 1024));
 
         replicationManager.setLogProvider(new ReplicationLogProvider());
+        replicationManager.configurePipeline(
+                Integer.getInteger("bdsql.replication.maxInFlight", 4),
+                Integer.getInteger("bdsql.replication.maxBatchEntries", 512),
+                Long.getLong("bdsql.replication.maxBatchBytes", 1024L * 1024));
+        replicationManager.configureLeaseReads(
+                Boolean.getBoolean("bdsql.read.lease"),
+                Long.getLong("bdsql.read.leaseDriftMs", 200L));
 
         this.electionManager = new RaftElectionManager(id, clusterInfo, stateManager, replicationManager);
         electionManager.setLogProvider(new ElectionLogProvider());
@@ -74,7 +124,7 @@ public class RaftNode {
     private Consumer<LogEntry> createDocumentApplyFunction() {
         return entry -> {
             try {
-                String commandJson = new String(entry.data(), java.nio.charset.StandardCharsets.UTF_8).trim();
+                String commandJson = entry.payload().toStringUtf8().trim();
                 if (commandJson.isEmpty()) {
                     return;
                 }
@@ -131,6 +181,47 @@ public class RaftNode {
                         respObs.onNext(resp);
                         respObs.onCompleted();
                     }
+
+                    @Override
+                    public void heartbeat(HeartbeatRequest req, StreamObserver<HeartbeatResponse> respObs) {
+                        respObs.onNext(handleHeartbeat(req));
+                        respObs.onCompleted();
+                    }
+
+                    // Messages on one stream arrive one at a time and in order, so the responses
+                    // line up with the leader's outstanding batches.
+                    @Override
+                    public StreamObserver<AppendEntriesRequest> replicateStream(
+                            StreamObserver<AppendEntriesResponse> respObs) {
+                        return new StreamObserver<AppendEntriesRequest>() {
+                            private String leaderId = "";
+
+                            @Override
+                            public void onNext(AppendEntriesRequest req) {
+                                if (!req.getLeaderId().isEmpty()) {
+                                    leaderId = req.getLeaderId();
+                                }
+                                respObs.onNext(handleAppendEntries(req, leaderId));
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                                respObs.onCompleted();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void installSnapshot(InstallSnapshotRequest req,
+                            StreamObserver<InstallSnapshotResponse> respObs) {
+                        InstallSnapshotResponse resp = handleInstallSnapshot(req);
+                        respObs.onNext(resp);
+                        respObs.onCompleted();
+                    }
                 })
                 .build()
                 .start();
@@ -173,6 +264,15 @@ public class RaftNode {
 
     private synchronized RequestVoteResponse handleRequestVote(RequestVoteRequest req) {
         long term = req.getTerm();
+
+        // Our leader may be serving lease reads on the strength of our last acknowledgement, so do
+        // not help elect another, or even take up the new term, until that lease has run out.
+        if (electionManager.withinLeaderLease()) {
+            return RequestVoteResponse.newBuilder()
+                    .setTerm(stateManager.getCurrentTerm())
+                    .setVoteGranted(false)
+                    .build();
+        }
         boolean voteGranted = stateManager.grantVote(term, req.getCandidateId());
 
         if (voteGranted) {
@@ -185,7 +285,11 @@ public class RaftNode {
                 .build();
     }
 
-    private synchronized AppendEntriesResponse handleAppendEntries(AppendEntriesRequest req) {
+    private AppendEntriesResponse handleAppendEntries(AppendEntriesRequest req) {
+        return handleAppendEntries(req, req.getLeaderId());
+    }
+
+    private synchronized AppendEntriesResponse handleAppendEntries(AppendEntriesRequest req, String leaderId) {
         long term = req.getTerm();
 
         if (term > stateManager.getCurrentTerm()) {
@@ -201,8 +305,8 @@ public class RaftNode {
         }
 
         electionManager.resetElectionTimeout();
+        electionManager.recordLeaderContact();
 
-        String leaderId = req.getLeaderId();
         if (leaderId != null && !leaderId.isEmpty()) {
             replicationManager.recordHeartbeat(leaderId);
         }
@@ -216,18 +320,117 @@ public class RaftNode {
         return AppendEntriesResponse.newBuilder()
                 .setTerm(stateManager.getCurrentTerm())
                 .setSuccess(result.isSuccess())
+                .setConflictTerm(result.getConflictTerm())
+                .setConflictIndex(result.getConflictIndex())
+                .setLastLogIndex(result.getLastLogIndex())
+                .setMatchIndex(result.isSuccess() ? req.getPrevLogIndex() + req.getEntriesCount() : 0)
                 .build();
     }
 
+    // Deliberately not synchronized with handleAppendEntries: a follower busy writing a large batch
+    // must still hear from its leader before the election timeout fires.
+    private HeartbeatResponse handleHeartbeat(HeartbeatRequest req) {
+        long term = req.getTerm();
+
+        if (term > stateManager.getCurrentTerm()) {
+            stateManager.becomeFollower(term);
+            logManager.clearPendingCommits();
+        }
+
+        if (term < stateManager.getCurrentTerm()) {
+            return HeartbeatResponse.newBuilder()
+                    .setTerm(stateManager.getCurrentTerm())
+                    .setSuccess(false)
+                    .build();
+        }
+
+        electionManager.resetElectionTimeout();
+        electionManager.recordLeaderContact();
+
+        String leaderId = req.getLeaderId();
+        if (leaderId != null && !leaderId.isEmpty()) {
+            replicationManager.recordHeartbeat(leaderId);
+        }
+        logManager.advanceCommitIndexFromLeader(term, req.getCommitIndex());
+
+        return HeartbeatResponse.newBuilder()
+                .setTerm(stateManager.getCurrentTerm())
+                .setSuccess(true)
+                .build();
+    }
+
+    private synchronized InstallSnapshotResponse handleInstallSnapshot(InstallSnapshotRequest req) {
+        long term = req.getTerm();
+
+        if (term > stateManager.getCurrentTerm()) {
+            stateManager.becomeFollower(term);
+            logManager.clearPendingCommits();
+        }
+
+        if (term < stateManager.getCurrentTerm()) {
+            return InstallSnapshotResponse.newBuilder()
+                    .setTerm(stateManager.getCurrentTerm())
+                    .setSuccess(false)
+                    .build();
+        }
+
+        electionManager.resetElectionTimeout();
+        electionManager.recordLeaderContact();
+
+        String leaderId = req.getLeaderId();
+        if (leaderId != null && !leaderId.isEmpty()) {
+            replicationManager.recordHeartbeat(leaderId);
+        }
+
+        boolean success = logManager.handleInstallSnapshot(
+                req.getLastIncludedIndex(),
+                req.getLastIncludedTerm(),
+                req.getOffset(),
+                req.getData().asReadOnlyByteBuffer(),
+                req.getDone());
+
+        return InstallSnapshotResponse.newBuilder()
+                .setTerm(stateManager.getCurrentTerm())
+                .setSuccess(success)
+                .build();
+    }
+
+    private class DocumentSnapshotProvider implements RaftLogManager.SnapshotProvider {
+        @Override
+        public void writeSnapshot(OutputStream out) throws IOException {
+            documentStore.exportSnapshot(out);
+        }
+
+        @Override
+        public void restoreSnapshot(InputStream in, long lastIncludedIndex) throws IOException {
+            documentStore.restoreSnapshot(in, lastIncludedIndex);
+        }
+
+        @Override
+        public long getAppliedIndex() {
+            return documentStore.getAppliedIndex();
+        }
+    }
+
     private class ReplicationLogProvider implements RaftReplicationManager.LogProvider {
         @Override
-        public int getLogSize() {
+        public long getLogSize() {
             return logManager.getLogSize();
         }
 
         @Override
-        public LogEntry getEntry(int index) {
-            return logManager.getEntry(index);
+        public long getTerm(long index) {
+            return logManager.getTerm(index);
+        }
+
+        @Override
+        public long getLastIndexOfTerm(long term) {
+            return logManager.getLastIndexOfTerm(term);
+        }
+
+        @Override
+        public List<LogEntry> getEntries(long from, int max, long maxBytes) {
+            return logManager.getEntries(from, max, maxBytes);
         }
 
         @Override
@@ -235,6 +438,16 @@ public class RaftNode {
             return logManager.getCommitIndex();
         }
 
+        @Override
+        public long getLogBaseIndex() {
+            return logManager.getLogBaseIndex();
+        }
+
+        @Override
+        public SnapshotStore.Snapshot getLatestSnapshot() throws IOException {
+            return logManager.getLatestSnapshot();
+        }
+
         @Override
         public void tryCommit() {
             logManager.tryCommit();
@@ -248,19 +461,23 @@ public class RaftNode {
 
     private class ElectionLogProvider implements RaftElectionManager.LogProvider {
         @Override
-        public int getLogSize() {
+        public long getLogSize() {
             return logManager.getLogSize();
         }
 
         @Override
         public long getLastLogTerm() {
-            LogEntry lastEntry = logManager.getEntry(logManager.getLogSize() - 1);
-            return lastEntry != null ? lastEntry.term() : 0;
+            return logManager.getLastLogTerm();
         }
 
         @Override
         public void clearPendingCommits() {
             logManager.clearPendingCommits();
         }
+
+        @Override
+        public void appendNoOp() {
+            logManager.appendEntryAsync(new byte[0]);
+        }
     }
 }
\ No newline at end of file
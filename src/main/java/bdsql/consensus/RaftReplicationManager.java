@@ -1,32 +1,78 @@
 package bdsql.consensus;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import bdsql.consensus.rpc.AppendEntriesRequest;
-import bdsql.consensus.rpc.AppendEntriesResponse;
+import bdsql.consensus.rpc.HeartbeatRequest;
+import bdsql.consensus.rpc.HeartbeatResponse;
+import bdsql.consensus.rpc.InstallSnapshotRequest;
+import bdsql.consensus.rpc.InstallSnapshotResponse;
 import bdsql.consensus.rpc.RaftGrpc;
+import bdsql.storage.SnapshotStore;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
 
 public class RaftReplicationManager {
     private final String nodeId;
     private final String nodeAddress;
     private final ClusterInfo clusterInfo;
     private final RaftStateManager stateManager;
-    private final Map<String, Long> nextIndex = new ConcurrentHashMap<>();
-    private final Map<String, Long> matchIndex = new ConcurrentHashMap<>();
+    private final Map<String, PeerReplicator> replicators = new ConcurrentHashMap<>();
+    private volatile int maxInFlight = 4;
+    private volatile int maxBatchEntries = 512;
+    // Kept well under the 4 MB inbound message limit on both ends of the channel.
+    private volatile long maxBatchBytes = 1024 * 1024;
+    // Match index per cluster member, in getAllNodes() order, with this node in selfSlot. Guarded
+    // by itself; quorumScratch is only touched under the same lock.
+    private final List<String> members;
+    private final int selfSlot;
+    private final long[] matchIndex;
+    private final long[] quorumScratch;
+    // Lease reads (optional). Per member slot, when the newest heartbeat it accepted was sent; only
+    // sends at or after leaderSinceNanos count. Guarded by matchIndex, like the match indexes.
+    private volatile boolean leaseReads;
+    private volatile long leaseNanos;
+    private final long[] leaseAckNanos;
+    private final long[] leaseScratch;
+    private long leaderSinceNanos;
     private final Map<String, AtomicLong> peerLastHeartbeat = new ConcurrentHashMap<>();
     private final Map<String, ManagedChannel> peerChannels = new ConcurrentHashMap<>();
+    // Heartbeats get their own connection per peer so they never wait behind replication traffic.
+    private final Map<String, ManagedChannel> heartbeatChannels = new ConcurrentHashMap<>();
+    private static final long HEARTBEAT_DEADLINE_MS = 500L;
+    private final Set<String> snapshotTransfers = ConcurrentHashMap.newKeySet();
+    // Leadership confirmation for ReadIndex reads. Reads that arrive while a round is out wait for the
+    // next one, which starts when the current one ends, so any number of concurrent reads share at
+    // most two rounds. Guarded by readRoundLock.
+    private final Object readRoundLock = new Object();
+    private CompletableFuture<Boolean> nextReadRound;
+    private boolean readRoundRunning;
+    // Wire form of recently sent entries, shared by every peer so that each entry is built once. The
+    // payload inside is the log's own ByteString, not a copy.
+    private static final int ENCODED_CACHE_SLOTS = 1024;
+    private final AtomicReferenceArray<bdsql.consensus.rpc.LogEntry> encodedEntries =
+            new AtomicReferenceArray<>(ENCODED_CACHE_SLOTS);
+    private static final int SNAPSHOT_CHUNK_BYTES = 1024 * 1024;
     
     private volatile String currentLeader = null;
     private final AtomicLong lastLeaderHeartbeat = new AtomicLong(0);
@@ -53,50 +99,195 @@ public class RaftReplicationManager {
         this.nodeId = nodeAddress;
         this.clusterInfo = clusterInfo;
         this.stateManager = stateManager;
+
+        List<String> nodes = new ArrayList<>(clusterInfo.getAllNodes());
+        // The node list holds addresses while nodeId may be a name, so also look for our own address.
+        int self = nodes.indexOf(nodeId);
+        if (self < 0) {
+            self = nodes.indexOf(stateManager.getHost() + ":" + stateManager.getPort());
+        }
+        if (self < 0) {
+            nodes.add(nodeId);
+            self = nodes.size() - 1;
+        }
+        this.members = List.copyOf(nodes);
+        this.selfSlot = self;
+        this.matchIndex = new long[members.size()];
+        this.quorumScratch = new long[members.size()];
+        this.leaseAckNanos = new long[members.size()];
+        this.leaseScratch = new long[members.size()];
+        this.leaderSinceNanos = System.nanoTime();
+        Arrays.fill(leaseAckNanos, leaderSinceNanos - 1);
     }
 
     public void setLogProvider(LogProvider logProvider) {
         this.logProvider = logProvider;
     }
 
-    public void initializeIndices(int logSize) {
-        for (String nodeAddr : clusterInfo.getAllNodes()) {
-            nextIndex.put(nodeAddr, (long) logSize);
-            matchIndex.put(nodeAddr, 0L);
+    LogProvider getLogProvider() {
+        return logProvider;
+    }
+
+    public void configurePipeline(int maxInFlight, int maxBatchEntries, long maxBatchBytes) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxBatchEntries = Math.max(1, maxBatchEntries);
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    // A lease lasts the shortest election timeout less maxClockDriftMs, counted from when the
+    // heartbeats a majority accepted were sent; the drift bound covers clocks running at different rates.
+    public void configureLeaseReads(boolean enabled, long maxClockDriftMs) {
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(
+                RaftElectionManager.ELECTION_TIMEOUT_MIN_MS - Math.max(0, maxClockDriftMs));
+        this.leaseReads = enabled && leaseNanos > 0;
+    }
+
+    public boolean isLeaseReadsEnabled() {
+        return leaseReads;
+    }
+
+    // True while a majority has accepted a heartbeat from this leadership so recently that none of
+    // them will vote for another candidate yet, so no other leader can exist and the local state
+    // machine may be read without a confirmation round.
+    public boolean hasReadLease() {
+        if (!leaseReads || !stateManager.isLeader()) {
+            return false;
+        }
+        int needed = getMajorityCount() - 1;
+        if (needed <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        synchronized (matchIndex) {
+            int n = 0;
+            for (int i = 0; i < leaseAckNanos.length; i++) {
+                if (i != selfSlot && leaseAckNanos[i] - leaderSinceNanos >= 0) {
+                    leaseScratch[n++] = leaseAckNanos[i];
+                }
+            }
+            if (n < needed) {
+                return false;
+            }
+            Arrays.sort(leaseScratch, 0, n);
+            return now - leaseScratch[n - needed] < leaseNanos;
+        }
+    }
+
+    private void recordLeaseAck(String peer, long sentAtNanos) {
+        int slot = slotOf(peer);
+        if (slot < 0 || slot == selfSlot) {
+            return;
+        }
+        synchronized (matchIndex) {
+            if (sentAtNanos - leaseAckNanos[slot] > 0) {
+                leaseAckNanos[slot] = sentAtNanos;
+            }
         }
-        matchIndex.put(nodeId, (long) logSize - 1);
-        nextIndex.put(nodeId, (long) logSize);
     }
 
-    public void updateNextIndex(String peer, long value) {
-        nextIndex.put(peer, value);
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    int getMaxBatchEntries() {
+        return maxBatchEntries;
     }
 
-    public void updateMatchIndex(String peer, long value) {
-        matchIndex.put(peer, value);
+    long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    // Index and term identify an entry uniquely, so a slot holding both can be reused as is.
+    bdsql.consensus.rpc.LogEntry encode(LogEntry le) {
+        int slot = (int) (le.index() & (ENCODED_CACHE_SLOTS - 1));
+        bdsql.consensus.rpc.LogEntry encoded = encodedEntries.get(slot);
+        if (encoded == null || encoded.getIndex() != le.index() || encoded.getTerm() != le.term()) {
+            encoded = bdsql.consensus.rpc.LogEntry.newBuilder()
+                    .setIndex(le.index())
+                    .setTerm(le.term())
+                    .setData(le.payload())
+                    .build();
+            encodedEntries.set(slot, encoded);
+        }
+        return encoded;
+    }
+
+    private PeerReplicator replicator(String peer) {
+        return replicators.computeIfAbsent(peer,
+                p -> new PeerReplicator(p, this, stateManager, getOrCreateChannel(peerChannels, p),
+                        logProvider.getLogSize()));
+    }
+
+    public void initializeIndices(long logSize) {
+        for (String peer : members) {
+            if (!isSelf(peer)) {
+                replicator(peer).reset(logSize);
+            }
+        }
+        synchronized (matchIndex) {
+            Arrays.fill(matchIndex, 0L);
+            matchIndex[selfSlot] = logSize - 1;
+            // Acks of heartbeats from an earlier leadership do not count toward this one's lease.
+            leaderSinceNanos = System.nanoTime();
+            Arrays.fill(leaseAckNanos, leaderSinceNanos - 1);
+        }
+    }
+
+    private int slotOf(String peer) {
+        return peer.equals(nodeId) ? selfSlot : members.indexOf(peer);
+    }
+
+    private boolean isSelf(String peer) {
+        return slotOf(peer) == selfSlot;
+    }
+
+    public void advanceMatchIndex(String peer, long value) {
+        int slot = slotOf(peer);
+        if (slot < 0) {
+            return;
+        }
+        synchronized (matchIndex) {
+            matchIndex[slot] = Math.max(matchIndex[slot], value);
+        }
     }
 
     public long getNextIndex(String peer) {
-        return nextIndex.getOrDefault(peer, 0L);
+        if (isSelf(peer)) {
+            return getMatchIndex(peer) + 1;
+        }
+        return slotOf(peer) < 0 ? 0L : replicator(peer).nextIndex();
+    }
+
+    public int getInFlight(String peer) {
+        return isSelf(peer) || slotOf(peer) < 0 ? 0 : replicator(peer).inFlight();
+    }
+
+    public boolean isInstallingSnapshot(String peer) {
+        return snapshotTransfers.contains(peer);
     }
 
     public long getMatchIndex(String peer) {
-        return matchIndex.getOrDefault(peer, 0L);
+        int slot = slotOf(peer);
+        if (slot < 0) {
+            return 0L;
+        }
+        synchronized (matchIndex) {
+            return matchIndex[slot];
+        }
     }
 
-    public int countReplicasWithIndex(long index) {
-        int count = 1;
-        for (String peer : clusterInfo.getPeerAddressesExcept(nodeId)) {
-            Long peerMatch = matchIndex.getOrDefault(peer, 0L);
-            if (peerMatch >= index) {
-                count++;
-            }
+    // The highest index stored on a majority: the majority-th largest match index. The leader's own
+    // slot only advances once an entry is durable in its WAL, so it counts like any other replica.
+    public long quorumMatchIndex() {
+        synchronized (matchIndex) {
+            System.arraycopy(matchIndex, 0, quorumScratch, 0, matchIndex.length);
+            Arrays.sort(quorumScratch);
+            return quorumScratch[quorumScratch.length - getMajorityCount()];
         }
-        return count;
     }
 
     public int getMajorityCount() {
-        return (clusterInfo.getAllNodes().size() / 2) + 1;
+        return (members.size() / 2) + 1;
     }
 
     public void startHeartbeats() {
@@ -123,86 +314,204 @@ public class RaftReplicationManager {
     }
 
     public void triggerReplication() {
-        List<String> peers = clusterInfo.getPeerAddressesExcept(nodeId);
-        for (String peer : peers) {
-            rpcExecutor.execute(() -> replicateToPeer(peer));
-        }
+        replicateToPeers(false);
     }
 
     private void sendHeartbeats() {
         if (!stateManager.isLeader()) {
             return;
         }
-        triggerReplication();
+        long term = stateManager.getCurrentTerm();
+        long commitIndex = logProvider.getCommitIndex();
+        String leaderId = stateManager.getHost() + ":" + stateManager.getPort();
+        for (String peer : members) {
+            if (!isSelf(peer)) {
+                sendHeartbeat(peer, leaderId, term, Math.min(commitIndex, getMatchIndex(peer)));
+            }
+        }
+        // Also give each replicator a chance to retry or probe a follower it has not heard back from.
+        replicateToPeers(true);
     }
 
-    public void replicateToPeer(String peer) {
-        if (peer.equals(nodeId)) {
-            return;
+    // Completes with true once a majority, counting this node, has acknowledged a heartbeat of the
+    // current term sent after this call; with false if leadership is lost or no majority answers
+    // within the heartbeat deadline.
+    public CompletableFuture<Boolean> confirmLeadership() {
+        synchronized (readRoundLock) {
+            if (nextReadRound == null) {
+                nextReadRound = new CompletableFuture<>();
+            }
+            CompletableFuture<Boolean> round = nextReadRound;
+            if (!readRoundRunning) {
+                startReadRound();
+            }
+            return round;
         }
+    }
 
-        try {
-            ManagedChannel channel = getOrCreateChannel(peer);
-            RaftGrpc.RaftBlockingStub stub = RaftGrpc.newBlockingStub(channel)
-                    .withDeadlineAfter(1000, TimeUnit.MILLISECONDS);
-
-            long nextIdx = nextIndex.getOrDefault(peer, (long) logProvider.getLogSize());
-            long prevIdx = nextIdx - 1;
-            long prevTerm = 0;
-
-            LogEntry prevEntry = logProvider.getEntry((int) prevIdx);
-            if (prevEntry != null) {
-                prevTerm = prevEntry.term();
+    // Caller holds readRoundLock.
+    private void startReadRound() {
+        CompletableFuture<Boolean> round = nextReadRound;
+        nextReadRound = null;
+        readRoundRunning = true;
+        round.completeOnTimeout(false, HEARTBEAT_DEADLINE_MS, TimeUnit.MILLISECONDS);
+        round.whenComplete((ok, error) -> {
+            synchronized (readRoundLock) {
+                readRoundRunning = false;
+                if (nextReadRound != null) {
+                    startReadRound();
+                }
             }
+        });
 
-            AppendEntriesRequest.Builder builder = AppendEntriesRequest.newBuilder()
-                    .setLeaderId(this.stateManager.getHost()+":"+this.stateManager.getPort())
-                    .setTerm(stateManager.getCurrentTerm())
-                    .setPrevLogIndex(prevIdx)
-                    .setPrevLogTerm(prevTerm)
-                    .setLeaderCommit(logProvider.getCommitIndex());
-
-            int entriesSent = 0;
-            for (long i = nextIdx; i < logProvider.getLogSize(); i++) {
-                LogEntry le = logProvider.getEntry((int) i);
-                if (le != null) {
-                    builder.addEntries(bdsql.consensus.rpc.LogEntry.newBuilder()
-                            .setIndex(le.index())
-                            .setTerm(le.term())
-                            .setData(com.google.protobuf.ByteString.copyFrom(le.data()))
-                            .build());
-                    entriesSent++;
+        if (!stateManager.isLeader()) {
+            round.complete(false);
+            return;
+        }
+        long term = stateManager.getCurrentTerm();
+        int needed = getMajorityCount() - 1;
+        if (needed <= 0) {
+            round.complete(true);
+            return;
+        }
+        long commitIndex = logProvider.getCommitIndex();
+        String leaderId = stateManager.getHost() + ":" + stateManager.getPort();
+        int peers = members.size() - 1;
+        AtomicInteger acks = new AtomicInteger();
+        AtomicInteger answered = new AtomicInteger();
+        for (String peer : members) {
+            if (isSelf(peer)) {
+                continue;
+            }
+            sendHeartbeat(peer, leaderId, term, Math.min(commitIndex, getMatchIndex(peer)), ok -> {
+                if (ok && acks.incrementAndGet() == needed) {
+                    round.complete(stateManager.isLeader() && stateManager.getCurrentTerm() == term);
                 }
+                if (answered.incrementAndGet() == peers) {
+                    round.complete(false);
+                }
+            });
+        }
+    }
+
+    private void sendHeartbeat(String peer, String leaderId, long term, long commitIndex) {
+        sendHeartbeat(peer, leaderId, term, commitIndex, ok -> {
+        });
+    }
+
+    // onResult is called once, with whether the peer accepted this node as leader for the term.
+    private void sendHeartbeat(String peer, String leaderId, long term, long commitIndex, Consumer<Boolean> onResult) {
+        HeartbeatRequest req = HeartbeatRequest.newBuilder()
+                .setLeaderId(leaderId)
+                .setTerm(term)
+                .setCommitIndex(commitIndex)
+                .build();
+        long sentAtNanos = System.nanoTime();
+        RaftGrpc.newStub(getOrCreateChannel(heartbeatChannels, peer))
+                .withDeadlineAfter(HEARTBEAT_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .heartbeat(req, new StreamObserver<HeartbeatResponse>() {
+                    @Override
+                    public void onNext(HeartbeatResponse resp) {
+                        if (resp.getTerm() > stateManager.getCurrentTerm()) {
+                            stepDown(resp.getTerm());
+                            onResult.accept(false);
+                        } else if (resp.getSuccess()) {
+                            recordHeartbeat(peer);
+                            recordLeaseAck(peer, sentAtNanos);
+                            onResult.accept(true);
+                        } else {
+                            onResult.accept(false);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        onResult.accept(false);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+    }
+
+    private void replicateToPeers(boolean heartbeat) {
+        for (String peer : members) {
+            if (!isSelf(peer)) {
+                replicator(peer).trigger(heartbeat);
             }
+        }
+    }
 
-            AppendEntriesRequest req = builder.build();
-            AppendEntriesResponse resp = stub.appendEntries(req);
+    void stepDown(long term) {
+        stateManager.becomeFollower(term);
+        logProvider.clearPendingCommits();
+        stopHeartbeats();
+        currentLeader = null;
+    }
 
-            if (resp.getSuccess()) {
-                recordHeartbeat(peer);
+    // Streams the latest snapshot file to the peer in chunks. At most one transfer per peer runs at a
+    // time; heartbeats that find the peer still behind the snapshot just return.
+    void startSnapshotTransfer(String peer) {
+        if (!snapshotTransfers.add(peer)) {
+            return;
+        }
+        try {
+            rpcExecutor.execute(() -> sendSnapshot(peer, getOrCreateChannel(peerChannels, peer)));
+        } catch (RuntimeException e) {
+            snapshotTransfers.remove(peer);
+        }
+    }
 
-                long newMatch;
-                if (entriesSent > 0) {
-                    newMatch = nextIdx + entriesSent - 1;
-                } else {
-                    newMatch = prevIdx;
+    private void sendSnapshot(String peer, ManagedChannel channel) {
+        try {
+            SnapshotStore.Snapshot snapshot = logProvider.getLatestSnapshot();
+            if (snapshot == null) {
+                return;
+            }
+            System.out.println(nodeId + " sending snapshot at index " + snapshot.lastIncludedIndex() + " ("
+                    + snapshot.size() + " bytes) to " + peer);
+
+            byte[] chunk = new byte[SNAPSHOT_CHUNK_BYTES];
+            long offset = 0;
+            try (InputStream in = Files.newInputStream(snapshot.file())) {
+                while (true) {
+                    int n = in.readNBytes(chunk, 0, chunk.length);
+                    boolean done = offset + n >= snapshot.size() || n < chunk.length;
+                    InstallSnapshotRequest req = InstallSnapshotRequest.newBuilder()
+                            .setLeaderId(this.stateManager.getHost() + ":" + this.stateManager.getPort())
+                            .setTerm(stateManager.getCurrentTerm())
+                            .setLastIncludedIndex(snapshot.lastIncludedIndex())
+                            .setLastIncludedTerm(snapshot.lastIncludedTerm())
+                            .setOffset(offset)
+                            .setData(com.google.protobuf.ByteString.copyFrom(chunk, 0, n))
+                            .setDone(done)
+                            .build();
+                    InstallSnapshotResponse resp = RaftGrpc.newBlockingStub(channel)
+                            .withDeadlineAfter(5000, TimeUnit.MILLISECONDS)
+                            .installSnapshot(req);
+                    if (resp.getTerm() > stateManager.getCurrentTerm()) {
+                        stepDown(resp.getTerm());
+                        return;
+                    }
+                    if (!resp.getSuccess() || !stateManager.isLeader()) {
+                        return;
+                    }
+                    recordHeartbeat(peer);
+                    offset += n;
+                    if (done) {
+                        break;
+                    }
                 }
-                matchIndex.put(peer, newMatch);
-                nextIndex.put(peer, newMatch + 1);
-                logProvider.tryCommit();
-            } else {
-                long ni = nextIndex.getOrDefault(peer, (long) logProvider.getLogSize());
-                long newNi = Math.max(1, ni - 1);
-                nextIndex.put(peer, newNi);
             }
 
-            if (resp.getTerm() > stateManager.getCurrentTerm()) {
-                stateManager.becomeFollower(resp.getTerm());
-                logProvider.clearPendingCommits();
-                stopHeartbeats();
-                currentLeader = null;
-            }
+            advanceMatchIndex(peer, snapshot.lastIncludedIndex());
+            replicator(peer).reset(snapshot.lastIncludedIndex() + 1);
+            logProvider.tryCommit();
         } catch (Exception e) {
+            System.err.println(nodeId + " snapshot transfer to " + peer + " failed: " + e.getMessage());
+        } finally {
+            snapshotTransfers.remove(peer);
         }
     }
 
@@ -319,18 +628,21 @@ public class RaftReplicationManager {
     public void shutdown() {
         stopHeartbeats();
         scheduler.shutdownNow();
+        replicators.values().forEach(PeerReplicator::shutdown);
 
-        for (ManagedChannel c : peerChannels.values()) {
-            if (c != null && !c.isShutdown()) {
-                c.shutdownNow();
+        for (Map<String, ManagedChannel> channels : List.of(peerChannels, heartbeatChannels)) {
+            for (ManagedChannel c : channels.values()) {
+                if (c != null && !c.isShutdown()) {
+                    c.shutdownNow();
+                }
             }
+            channels.clear();
         }
-        peerChannels.clear();
         rpcExecutor.shutdownNow();
     }
 
-    private ManagedChannel getOrCreateChannel(String peer) {
-        return peerChannels.computeIfAbsent(peer, p -> {
+    private ManagedChannel getOrCreateChannel(Map<String, ManagedChannel> channels, String peer) {
+        return channels.computeIfAbsent(peer, p -> {
             String[] parts = p.split(":");
             String host = parts[0].trim();
             int port = Integer.parseInt(parts[1].trim());
@@ -342,9 +654,13 @@ public class RaftReplicationManager {
     }
 
     public interface LogProvider {
-        int getLogSize();
-        LogEntry getEntry(int index);
+        long getLogSize();
+        long getTerm(long index);
+        long getLastIndexOfTerm(long term);
+        List<LogEntry> getEntries(long from, int max, long maxBytes);
         long getCommitIndex();
+        long getLogBaseIndex();
+        SnapshotStore.Snapshot getLatestSnapshot() throws IOException;
         void tryCommit();
         void clearPendingCommits();
     }
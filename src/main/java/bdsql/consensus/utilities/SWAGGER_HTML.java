@@ -169,17 +169,37 @@ public class SWAGGER_HTML {
                                 "/api/log/full": {
                                     "get": {
                                         "summary": "Full Log Entries",
-                                        "description": "Get all log entries (complete, not truncated)",
+                                        "description": "Get a page of log entries (complete, not truncated)",
                                         "tags": ["Log"],
+                                        "parameters": [
+                                            {
+                                                "name": "from",
+                                                "in": "query",
+                                                "description": "Index of the first entry; defaults to the first retained entry",
+                                                "schema": {
+                                                    "type": "integer"
+                                                }
+                                            },
+                                            {
+                                                "name": "limit",
+                                                "in": "query",
+                                                "description": "Maximum number of entries to return (at most 10000)",
+                                                "schema": {
+                                                    "type": "integer",
+                                                    "default": 1000
+                                                }
+                                            }
+                                        ],
                                         "responses": {
                                             "200": {
-                                                "description": "All log entries",
+                                                "description": "A page of log entries",
                                                 "content": {
                                                     "application/json": {
                                                         "schema": {
                                                             "type": "object",
                                                             "properties": {
                                                                 "totalEntries": { "type": "integer", "example": 150 },
+                                                                "nextIndex": { "type": "integer", "description": "Index to pass as from for the next page" },
                                                                 "entries": {
                                                                     "type": "array",
                                                                     "items": {
@@ -1,7 +1,12 @@
 package bdsql.storage;
 
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -27,14 +32,23 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 public class BTreeDocumentStore implements Closeable {
+    private static final int SNAPSHOT_VERSION = 1;
+
     private final DB db;
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
     private final ConcurrentMap<String, String> collectionsCatalog;
     private final ConcurrentMap<String, String> idGeneratorsMap;
+    // Index of the last raft entry reflected in the store, written in the same commit as its effects.
+    private final ConcurrentMap<String, Long> metaMap;
+    private static final String APPLIED_INDEX_KEY = "appliedIndex";
+    // Secondary index definitions live in metaMap as INDEX_KEY_PREFIX + collection + NUL + field, so
+    // they commit with the writes that create them and are reopened on startup.
+    private static final String INDEX_KEY_PREFIX = "index:";
 
     private final Map<String, ConcurrentMap<String, String>> primaryMaps = new HashMap<>();
     private final Map<String, Map<String, BTreeMap<String, Boolean>>> secondaryIndexes = new HashMap<>();
+    private boolean batching;
 
     public BTreeDocumentStore(Path storageDir) throws IOException {
         Files.createDirectories(storageDir);
@@ -47,7 +61,14 @@ public class BTreeDocumentStore implements Closeable {
 
         this.collectionsCatalog = db.hashMap("__collections_catalog__", Serializer.STRING, Serializer.STRING).createOrOpen();
         this.idGeneratorsMap = db.hashMap("__id_generators__", Serializer.STRING, Serializer.STRING).createOrOpen();
+        this.metaMap = db.hashMap("__meta__", Serializer.STRING, Serializer.LONG).createOrOpen();
 
+        for (String key : metaMap.keySet()) {
+            if (key.startsWith(INDEX_KEY_PREFIX)) {
+                int sep = key.indexOf('\0', INDEX_KEY_PREFIX.length());
+                openSecondaryIndex(key.substring(INDEX_KEY_PREFIX.length(), sep), key.substring(sep + 1));
+            }
+        }
     }
 
     private synchronized ConcurrentMap<String, String> openPrimaryMap(String collection) {
@@ -56,7 +77,7 @@ public class BTreeDocumentStore implements Closeable {
         if (mapName == null) {
             mapName = "primary_" + collection;
             collectionsCatalog.put(collection, mapName);
-            db.commit();
+            commit();
         }
         ConcurrentMap<String, String> map = db.hashMap(mapName, Serializer.STRING, Serializer.STRING).createOrOpen();
         primaryMaps.put(collection, map);
@@ -73,6 +94,7 @@ public class BTreeDocumentStore implements Closeable {
                 .counterEnable()
                 .createOrOpen();
         indexesForCollection.put(field, idx);
+        metaMap.putIfAbsent(indexDefinitionKey(collection, field), 1L);
         return idx;
     }
 
@@ -80,6 +102,10 @@ public class BTreeDocumentStore implements Closeable {
         return "idx_" + collection + "_" + field;
     }
 
+    private static String indexDefinitionKey(String collection, String field) {
+        return INDEX_KEY_PREFIX + collection + '\0' + field;
+    }
+
     public synchronized String insert(String collection, JsonObject document) {
         ConcurrentMap<String, String> primary = openPrimaryMap(collection);
 
@@ -99,7 +125,7 @@ public class BTreeDocumentStore implements Closeable {
 
         autoIndexDocument(collection, id, document);
 
-        db.commit();
+        commit();
         return id;
     }
 
@@ -118,7 +144,7 @@ public class BTreeDocumentStore implements Closeable {
 
         primary.put(id, gson.toJson(existing));
         autoIndexDocument(collection, id, existing);
-        db.commit();
+        commit();
         return true;
     }
 
@@ -127,7 +153,7 @@ public class BTreeDocumentStore implements Closeable {
         String existing = primary.remove(id);
         if (existing == null) return false;
         removeFromIndexes(collection, id, JsonParser.parseString(existing).getAsJsonObject());
-        db.commit();
+        commit();
         return true;
     }
 
@@ -165,7 +191,7 @@ public class BTreeDocumentStore implements Closeable {
                 idx.put(key, Boolean.TRUE);
             }
         }
-        db.commit();
+        commit();
     }
 
     public List<String> listCollections() {
@@ -202,6 +228,108 @@ public class BTreeDocumentStore implements Closeable {
         }
     }
 
+    // Streams every collection, its documents, its indexed fields and the id generators. Holding the
+    // store lock keeps the export consistent with the last applied command.
+    public synchronized void exportSnapshot(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(SNAPSHOT_VERSION);
+
+        dos.writeInt(idGeneratorsMap.size());
+        for (Map.Entry<String, String> e : idGeneratorsMap.entrySet()) {
+            writeString(dos, e.getKey());
+            writeString(dos, e.getValue());
+        }
+
+        List<String> collections = listCollections();
+        dos.writeInt(collections.size());
+        for (String collection : collections) {
+            writeString(dos, collection);
+            Map<String, BTreeMap<String, Boolean>> idxs = secondaryIndexes.getOrDefault(collection, Map.of());
+            dos.writeInt(idxs.size());
+            for (String field : idxs.keySet()) {
+                writeString(dos, field);
+            }
+            for (Map.Entry<String, String> e : openPrimaryMap(collection).entrySet()) {
+                dos.writeBoolean(true);
+                writeString(dos, e.getKey());
+                writeString(dos, e.getValue());
+            }
+            dos.writeBoolean(false);
+        }
+        dos.flush();
+    }
+
+    // Replaces the whole store with the contents of a snapshot in a single commit, recording
+    // appliedIndex along with it.
+    public synchronized void restoreSnapshot(InputStream in, long appliedIndex) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        int version = dis.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported document snapshot version: " + version);
+        }
+
+        for (String collection : listCollections()) {
+            openPrimaryMap(collection).clear();
+            Map<String, BTreeMap<String, Boolean>> idxs = secondaryIndexes.get(collection);
+            if (idxs != null) {
+                idxs.values().forEach(Map::clear);
+            }
+        }
+        collectionsCatalog.clear();
+        idGeneratorsMap.clear();
+        primaryMaps.clear();
+        secondaryIndexes.clear();
+        metaMap.keySet().removeIf(key -> key.startsWith(INDEX_KEY_PREFIX));
+
+        int generators = dis.readInt();
+        for (int i = 0; i < generators; i++) {
+            idGeneratorsMap.put(readString(dis), readString(dis));
+        }
+
+        int collections = dis.readInt();
+        for (int c = 0; c < collections; c++) {
+            String collection = readString(dis);
+            ConcurrentMap<String, String> primary = openPrimaryMap(collection);
+            int fieldCount = dis.readInt();
+            List<BTreeMap<String, Boolean>> indexes = new ArrayList<>();
+            List<String> fields = new ArrayList<>();
+            for (int f = 0; f < fieldCount; f++) {
+                String field = readString(dis);
+                BTreeMap<String, Boolean> idx = openSecondaryIndex(collection, field);
+                idx.clear();
+                indexes.add(idx);
+                fields.add(field);
+            }
+            while (dis.readBoolean()) {
+                String id = readString(dis);
+                String json = readString(dis);
+                primary.put(id, json);
+                if (!fields.isEmpty()) {
+                    JsonObject doc = JsonParser.parseString(json).getAsJsonObject();
+                    for (int f = 0; f < fields.size(); f++) {
+                        if (doc.has(fields.get(f))) {
+                            indexes.get(f).put(compositeIndexKey(doc.get(fields.get(f)), id), Boolean.TRUE);
+                        }
+                    }
+                }
+            }
+        }
+        metaMap.put(APPLIED_INDEX_KEY, appliedIndex);
+        db.commit();
+    }
+
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     private Set<String> findCandidateIdsUsingIndex(String collection, Query query) {
         Map<String, BTreeMap<String, Boolean>> idxs = secondaryIndexes.get(collection);
         if (idxs == null) return null;
@@ -235,10 +363,33 @@ public class BTreeDocumentStore implements Closeable {
         if (stored != null) v = Long.parseLong(stored);
         v++;
         idGeneratorsMap.put(collection, Long.toString(v));
-        db.commit();
+        commit();
         return collection + "_" + System.currentTimeMillis() + "_" + v;
     }
 
+    // Runs work with the per-operation commits suppressed and commits once at the end, so a run of
+    // writes costs a single MapDB transaction. appliedIndex is stored in that same transaction.
+    public synchronized void runBatch(long appliedIndex, Runnable work) {
+        batching = true;
+        try {
+            work.run();
+        } finally {
+            batching = false;
+            metaMap.put(APPLIED_INDEX_KEY, appliedIndex);
+            db.commit();
+        }
+    }
+
+    public long getAppliedIndex() {
+        return metaMap.getOrDefault(APPLIED_INDEX_KEY, 0L);
+    }
+
+    private void commit() {
+        if (!batching) {
+            db.commit();
+        }
+    }
+
     @Override
     public void close() {
         db.close();
@@ -0,0 +1,67 @@
+package bdsql.storage;
+
+import java.util.Locale;
+
+public record DurabilityPolicy(Mode mode, int maxRecords, long maxDelayMicros) {
+
+    public enum Mode {
+        // acknowledge a group-commit batch once it has been fsynced
+        ALWAYS,
+        // acknowledge once written to the OS; fsync in the background every maxRecords records or
+        // maxDelayMicros, which bounds what a power loss can take
+        BATCHED,
+        // acknowledge once written to the OS and leave flushing to the OS
+        OS
+    }
+
+    public DurabilityPolicy {
+        if (mode == Mode.BATCHED && (maxRecords <= 0 || maxDelayMicros <= 0)) {
+            throw new IllegalArgumentException("batched durability needs positive maxRecords and maxDelayMicros");
+        }
+    }
+
+    public static DurabilityPolicy always() {
+        return new DurabilityPolicy(Mode.ALWAYS, 1, 0);
+    }
+
+    public static DurabilityPolicy batched(int maxRecords, long maxDelayMicros) {
+        return new DurabilityPolicy(Mode.BATCHED, maxRecords, maxDelayMicros);
+    }
+
+    public static DurabilityPolicy osOnly() {
+        return new DurabilityPolicy(Mode.OS, 0, 0);
+    }
+
+    // Accepts "always", "os" or "batched:<records>:<micros>".
+    public static DurabilityPolicy parse(String spec) {
+        if (spec == null || spec.isBlank()) {
+            return always();
+        }
+        String[] parts = spec.trim().toLowerCase(Locale.ROOT).split(":");
+        switch (parts[0]) {
+            case "always":
+                return always();
+            case "os":
+                return osOnly();
+            case "batched":
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("expected batched:<records>:<micros> but got " + spec);
+                }
+                return batched(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+            default:
+                throw new IllegalArgumentException("unknown WAL durability policy: " + spec);
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case BATCHED:
+                return "batched:" + maxRecords + ":" + maxDelayMicros;
+            case OS:
+                return "os";
+            default:
+                return "always";
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package bdsql.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+// Keeps the latest state-machine snapshot as a single file: a header tagged with the last included
+// index and term followed by the opaque payload. The file is shipped byte for byte by InstallSnapshot,
+// so a follower ends up with exactly the leader's file.
+public final class SnapshotStore {
+    private static final String MAGIC = "RSNP";
+    private static final int VERSION = 1;
+    public static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+
+    private final Path dir;
+    private final Path file;
+    private final Path incomingFile;
+
+    private FileChannel incoming;
+    private long incomingIndex;
+    private long incomingTerm;
+    private long incomingSize;
+
+    public record Snapshot(long lastIncludedIndex, long lastIncludedTerm, Path file, long size) {}
+
+    public interface PayloadWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    public SnapshotStore(Path dir) throws IOException {
+        Objects.requireNonNull(dir);
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.file = dir.resolve("snapshot.bin");
+        this.incomingFile = dir.resolve("snapshot.incoming");
+    }
+
+    public synchronized Snapshot latest() throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return readHeader(file);
+    }
+
+    public synchronized Snapshot write(long lastIncludedIndex, long lastIncludedTerm, PayloadWriter writer)
+            throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName().toString() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(ch), 1024 * 1024));
+            out.write(MAGIC.getBytes("UTF-8"));
+            out.writeInt(VERSION);
+            out.writeLong(lastIncludedIndex);
+            out.writeLong(lastIncludedTerm);
+            writer.writeTo(out);
+            out.flush();
+            ch.force(true);
+        }
+        publish(tmp);
+        return readHeader(file);
+    }
+
+    // Opens the payload of the given snapshot, positioned just past the header.
+    public InputStream openPayload(Snapshot snapshot) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(snapshot.file(), StandardOpenOption.READ),
+                1024 * 1024);
+        try {
+            DataInputStream dis = new DataInputStream(in);
+            checkHeader(dis, snapshot.file());
+            long index = dis.readLong();
+            long term = dis.readLong();
+            if (index != snapshot.lastIncludedIndex() || term != snapshot.lastIncludedTerm()) {
+                throw new IOException("Snapshot " + snapshot.file().getFileName() + " was replaced");
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // Accepts one chunk of a snapshot file streamed by the leader. Chunks must arrive in order starting
+    // at offset 0; the snapshot only replaces the current one once the final chunk has been written.
+    public synchronized Snapshot receiveChunk(long lastIncludedIndex, long lastIncludedTerm, long offset,
+            ByteBuffer data, boolean done) throws IOException {
+        if (offset == 0) {
+            abortIncoming();
+            incoming = FileChannel.open(incomingFile,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            incomingIndex = lastIncludedIndex;
+            incomingTerm = lastIncludedTerm;
+            incomingSize = 0;
+        } else if (incoming == null || lastIncludedIndex != incomingIndex || lastIncludedTerm != incomingTerm
+                || offset != incomingSize) {
+            throw new IOException("Unexpected snapshot chunk at offset " + offset + " for index " + lastIncludedIndex
+                    + " (have " + incomingSize + " bytes of index " + incomingIndex + ")");
+        }
+        while (data.hasRemaining()) {
+            incomingSize += incoming.write(data, incomingSize);
+        }
+        if (!done) {
+            return null;
+        }
+
+        incoming.force(true);
+        incoming.close();
+        incoming = null;
+        Snapshot received = readHeader(incomingFile);
+        if (received.lastIncludedIndex() != lastIncludedIndex || received.lastIncludedTerm() != lastIncludedTerm) {
+            Files.deleteIfExists(incomingFile);
+            throw new IOException("Received snapshot header does not match index " + lastIncludedIndex
+                    + " term " + lastIncludedTerm);
+        }
+        publish(incomingFile);
+        return readHeader(file);
+    }
+
+    private void abortIncoming() throws IOException {
+        if (incoming != null) {
+            incoming.close();
+            incoming = null;
+        }
+    }
+
+    private void publish(Path source) throws IOException {
+        try {
+            Files.move(source, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(source, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel dirCh = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dirCh.force(true);
+        } catch (Exception ignore) {
+        }
+    }
+
+    private static Snapshot readHeader(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path, StandardOpenOption.READ);
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(in, HEADER_BYTES))) {
+            checkHeader(dis, path);
+            long index = dis.readLong();
+            long term = dis.readLong();
+            return new Snapshot(index, term, path, Files.size(path));
+        }
+    }
+
+    private static void checkHeader(DataInputStream dis, Path path) throws IOException {
+        byte[] magicBytes = new byte[4];
+        dis.readFully(magicBytes);
+        if (!MAGIC.equals(new String(magicBytes, "UTF-8"))) {
+            throw new IOException("Invalid snapshot file " + path.getFileName() + " (bad magic)");
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+    }
+}
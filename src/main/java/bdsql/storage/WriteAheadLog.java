@@ -1,179 +1,1252 @@
 package bdsql.storage;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
 
 public final class WriteAheadLog implements Closeable {
-    private final Path walFile;
-    private final FileChannel channel;
+    private static final String MANIFEST_MAGIC = "RWAL";
+    private static final int MANIFEST_VERSION = 1;
+    private static final String LEGACY_WAL_FILE = "wal.log";
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int INDEX_INTERVAL = 32;
+
+    // Segment files start with a magic/version header. Each record is
+    // [len:int][crc32c:int][term:long][index:long][data], where len covers term, index and data
+    // and the CRC32C covers the same bytes.
+    private static final int SEGMENT_MAGIC = 0x52534547; // "RSEG"
+    private static final int SEGMENT_VERSION = 2;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 4 + 4 + 16;
+    private static final int SCAN_BUFFER_BYTES = 256 * 1024;
+    // The active segment is preallocated with zeros to segmentBytes, so appends overwrite existing
+    // blocks and fdatasync never has to flush a size change. A zero length word marks the logical end.
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024);
+
+    private final Path dir;
+    private final Path manifestFile;
+    private final long segmentBytes;
+    // The next segment is zero-filled ahead of need in spareFile, so a roll only has to rename it
+    // into place instead of preallocating under ioLock. spareSegment is guarded by ioLock.
+    private final Path spareFile;
+    private final ExecutorService preallocator;
+    private CompletableFuture<Boolean> spareSegment;
+    private final DurabilityPolicy durability;
+
+    // Segments keyed by the index of their first record. Only the last one is ever written to.
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private long prevIndex = 0L;
+    private long prevTerm = 0L;
     private long lastIndex = 0L;
     private long lastTerm = 0L;
 
+    // Group commit: appenders encode records straight into a pooled direct staging buffer under the
+    // WAL monitor, and a single flusher thread swaps it with its spare and writes everything staged
+    // with one write and one fsync. Steady-state appends allocate nothing per record.
+    // Lock order is ioLock -> this; the monitor is never held across file I/O.
+    private final Object ioLock = new Object();
+    // Open cursors hold the read side so a suffix truncation or compaction never rewrites or deletes
+    // records under a live mapping.
+    private final ReentrantReadWriteLock mappingLock = new ReentrantReadWriteLock();
+    private static final int STAGING_BUFFER_BYTES = 1024 * 1024;
+    private ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_BUFFER_BYTES);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(STAGING_BUFFER_BYTES);
+    private int stagedRecords = 0;
+    private final CRC32C enqueueCrc = new CRC32C();
+    // writtenIndex has been handed to the OS and syncedIndex has been fsynced. durableIndex is the
+    // acknowledgement point of the configured policy: syncedIndex for ALWAYS, writtenIndex otherwise.
+    private long writtenIndex = 0L;
+    private long syncedIndex = 0L;
+    private long durableIndex = 0L;
+    private int unsyncedRecords = 0;
+    private long firstUnsyncedNanos = 0L;
+    // Set when a write ran past the preallocated end, so the next sync must also persist the new size.
+    private boolean metadataDirty = false;
+    private IOException flushFailure;
+    private boolean closed = false;
+    private final Thread flusher;
+    private volatile LongConsumer durabilityListener;
+    private long notifiedIndex = 0L;
+
     public record WALRecord(long index, long term, byte[] data) {}
 
+    private static final class Segment {
+        final long firstIndex;
+        final Path path;
+        FileChannel channel;
+        long size;
+        long allocated;
+        long lastIndex;
+        long lastTerm;
+
+        // Sparse offset index rebuilt on open: offsets[k] is the file offset of record
+        // firstIndex + k * INDEX_INTERVAL, so any record is at most INDEX_INTERVAL - 1 hops away.
+        long[] offsets = new long[16];
+        int offsetCount;
+
+        Segment(long firstIndex, Path path) {
+            this.firstIndex = firstIndex;
+            this.path = path;
+            this.lastIndex = firstIndex - 1;
+        }
+
+        boolean isEmpty() {
+            return lastIndex < firstIndex;
+        }
+
+        void noteRecord(long index, long offset) {
+            long rel = index - firstIndex;
+            if (rel % INDEX_INTERVAL != 0 || rel / INDEX_INTERVAL != offsetCount) {
+                return;
+            }
+            if (offsetCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[offsetCount++] = offset;
+        }
+
+        long floorOffset(long index) {
+            return offsets[(int) ((index - firstIndex) / INDEX_INTERVAL)];
+        }
+
+        void truncateIndex(long keepThrough) {
+            offsetCount = keepThrough < firstIndex ? 0 : (int) ((keepThrough - firstIndex) / INDEX_INTERVAL) + 1;
+        }
+    }
+
     public WriteAheadLog(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES, DurabilityPolicy.always());
+    }
+
+    public WriteAheadLog(Path dir, long segmentBytes) throws IOException {
+        this(dir, segmentBytes, DurabilityPolicy.always());
+    }
+
+    public WriteAheadLog(Path dir, long segmentBytes, DurabilityPolicy durability) throws IOException {
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException("segmentBytes must be positive");
+        }
         Files.createDirectories(dir);
-        this.walFile = dir.resolve("wal.log");
-        this.channel = FileChannel.open(walFile,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.READ,
-                StandardOpenOption.WRITE);
+        this.dir = dir;
+        this.manifestFile = dir.resolve("wal.manifest");
+        this.spareFile = dir.resolve("segment-spare.tmp");
+        this.segmentBytes = segmentBytes;
+        this.durability = durability;
+        this.preallocator = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "wal-prealloc-" + dir.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
         recover();
+        writtenIndex = lastIndex;
+        syncedIndex = lastIndex;
+        durableIndex = lastIndex;
+        notifiedIndex = lastIndex;
+
+        this.flusher = new Thread(this::flushLoop, "wal-flusher-" + dir.getFileName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+        synchronized (ioLock) {
+            prepareSpare();
+        }
+    }
+
+    private Path segmentPath(long firstIndex) {
+        return dir.resolve(String.format("segment-%020d.log", firstIndex));
     }
 
     private void recover() throws IOException {
-        long pos = 0;
-        ByteBuffer intBuf = ByteBuffer.allocate(4);
-        while (pos < channel.size()) {
-            intBuf.clear();
-            channel.position(pos);
-            int bytesRead = channel.read(intBuf);
-            if (bytesRead < 4) break;
-            intBuf.flip();
-            int recLen = intBuf.getInt();
-            if (recLen <= 0) {
-                channel.truncate(pos);
-                break;
+        List<Long> firstIndexes = new ArrayList<>();
+        if (Files.exists(manifestFile)) {
+            readManifest(firstIndexes);
+        } else {
+            // Before the first manifest is written the only segment there can be is segment 1. It
+            // may hold the legacy log, renamed just before a crash, so it is adopted and scanned.
+            Path legacy = dir.resolve(LEGACY_WAL_FILE);
+            if (Files.exists(legacy)) {
+                Files.move(legacy, segmentPath(1L), StandardCopyOption.ATOMIC_MOVE);
             }
-            long headerSize = 4 + recLen;
-            if (pos + headerSize > channel.size()) {
-                channel.truncate(pos);
+            if (Files.exists(segmentPath(1L))) {
+                firstIndexes.add(1L);
+            }
+        }
+
+        ByteBuffer scanBuffer = ByteBuffer.allocateDirect(SCAN_BUFFER_BYTES);
+        long expected = prevIndex + 1;
+        lastIndex = prevIndex;
+        lastTerm = prevTerm;
+        boolean dropRest = false;
+        for (long first : firstIndexes) {
+            Path path = segmentPath(first);
+            if (dropRest || first != expected || !Files.exists(path)) {
+                dropRest = true;
+                Files.deleteIfExists(path);
+                continue;
+            }
+            Segment seg = new Segment(first, path);
+            boolean intact;
+            if (isLegacySegment(path, first)) {
+                upgradeLegacySegment(path);
+            }
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                checkSegmentHeader(path, ch, scanBuffer);
+                intact = scanSegment(seg, ch, scanBuffer);
+            }
+            if (!seg.isEmpty() || segments.isEmpty()) {
+                segments.put(first, seg);
+            } else {
+                Files.deleteIfExists(path);
+            }
+            if (!seg.isEmpty()) {
+                lastIndex = seg.lastIndex;
+                lastTerm = seg.lastTerm;
+                expected = seg.lastIndex + 1;
+            }
+            // A torn record can only be at the tail of the log; anything after it is garbage.
+            if (!intact) {
+                dropRest = true;
+            }
+        }
+
+        if (segments.isEmpty() || segments.lastEntry().getValue().lastIndex != lastIndex) {
+            segments.put(lastIndex + 1, new Segment(lastIndex + 1, segmentPath(lastIndex + 1)));
+        }
+        openActive();
+        writeManifest();
+    }
+
+    // Reads every well-formed record of the segment with one reused buffer, truncating at the
+    // first torn, corrupt or out-of-order record.
+    private boolean scanSegment(Segment seg, FileChannel ch, ByteBuffer buffer) throws IOException {
+        long size = ch.size();
+        RecordScanner scanner = new RecordScanner(ch, SEGMENT_HEADER_BYTES, size, buffer);
+        while (scanner.next()) {
+            if (scanner.index != seg.lastIndex + 1) {
+                scanner.position = scanner.recordPosition;
                 break;
             }
-            ByteBuffer payload = ByteBuffer.allocate(recLen);
-            channel.position(pos + 4);
-            channel.read(payload);
-            payload.flip();
-            long term = payload.getLong();
-            long index = payload.getLong();
-            byte[] data = new byte[recLen - 16];
-            if (data.length > 0) payload.get(data);
-            lastIndex = index;
-            lastTerm = term;
-            pos += headerSize;
+            seg.noteRecord(scanner.index, scanner.recordPosition);
+            seg.lastIndex = scanner.index;
+            seg.lastTerm = scanner.term;
         }
-        channel.position(channel.size());
+        long pos = scanner.position;
+        seg.size = pos;
+        // Past the logical end a preallocated segment is all zeros. Anything else is a torn write and
+        // is wiped so that stale records can never be picked up again once new ones overwrite the gap.
+        long garbageEnd = lastNonZero(ch, pos, size, buffer);
+        if (garbageEnd > pos) {
+            System.err.println("WAL segment " + seg.path.getFileName() + " has a torn or corrupt record at offset "
+                    + pos + "; discarding " + (garbageEnd - pos) + " bytes");
+            zeroFill(ch, pos, garbageEnd);
+            ch.force(false);
+            return false;
+        }
+        return true;
     }
 
-    public synchronized long append(long term, byte[] data) throws IOException {
-        long expectedIndex = lastIndex + 1;
-        return appendWithExpectedIndex(expectedIndex, term, data);
+    // Returns the offset just past the last non-zero byte in [from, to), or from if there is none.
+    private static long lastNonZero(FileChannel ch, long from, long to, ByteBuffer buffer) throws IOException {
+        long last = from;
+        long pos = from;
+        while (pos < to) {
+            buffer.clear();
+            if (to - pos < buffer.capacity()) {
+                buffer.limit((int) (to - pos));
+            }
+            int n = ch.read(buffer, pos);
+            if (n <= 0) break;
+            int i = 0;
+            for (; i + 8 <= n; i += 8) {
+                if (buffer.getLong(i) != 0L) last = pos + i + 8;
+            }
+            for (; i < n; i++) {
+                if (buffer.get(i) != 0) last = pos + i + 1;
+            }
+            pos += n;
+        }
+        return Math.min(last, to);
     }
 
-    public synchronized long appendWithExpectedIndex(long expectedIndex, long term, byte[] data) throws IOException {
-        if (expectedIndex != lastIndex + 1) {
-            throw new IOException("WAL append index mismatch. expected " + (lastIndex + 1) + " but got " + expectedIndex);
+    private static void zeroFill(FileChannel ch, long from, long to) throws IOException {
+        long pos = from;
+        while (pos < to) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            if (to - pos < zeros.capacity()) {
+                zeros.limit((int) (to - pos));
+            }
+            pos += ch.write(zeros, pos);
+        }
+    }
+
+    // Segments from before checksums have no header: they start straight with a
+    // [len][term][index][data] record, and the first one carries the segment's first index.
+    private static boolean isLegacySegment(Path path, long firstIndex) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 4 + 16) {
+                return false;
+            }
+            ByteBuffer head = ByteBuffer.allocate(4 + 16);
+            readFully(ch, head, 0);
+            int recLen = head.getInt(0);
+            return recLen != SEGMENT_MAGIC && recLen >= 16 && 4L + recLen <= size && head.getLong(12) == firstIndex;
+        }
+    }
+
+    private static void checkSegmentHeader(Path path, FileChannel ch, ByteBuffer buffer) throws IOException {
+        long size = ch.size();
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        if (size >= SEGMENT_HEADER_BYTES) {
+            readFully(ch, header, 0);
+            if (header.getInt(0) == SEGMENT_MAGIC) {
+                int version = header.getInt(4);
+                if (version != SEGMENT_VERSION) {
+                    throw new IOException("Unsupported WAL segment version: " + version);
+                }
+                return;
+            }
+        }
+        if (size >= SEGMENT_HEADER_BYTES && lastNonZero(ch, 0, size, buffer) > 0) {
+            throw new IOException("WAL segment " + path.getFileName() + " has a corrupt header");
+        }
+        // Freshly created, or torn before anything but zeros reached the disk: start it over.
+        ch.truncate(0);
+        writeSegmentHeader(ch);
+        ch.force(true);
+    }
+
+    private static void writeSegmentHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(SEGMENT_VERSION);
+        header.flip();
+        while (header.hasRemaining()) ch.write(header, SEGMENT_HEADER_BYTES - header.remaining());
+    }
+
+    // Rewrites a headerless [len][term][index][data] file from before checksums into the current format.
+    private void upgradeLegacySegment(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName().toString() + ".upgrade");
+        CRC32C crc = new CRC32C();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp,
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeSegmentHeader(out);
+            out.position(SEGMENT_HEADER_BYTES);
+            long pos = 0;
+            long size = in.size();
+            ByteBuffer intBuf = ByteBuffer.allocate(4);
+            while (pos + 4 + 16 <= size) {
+                intBuf.clear();
+                readFully(in, intBuf, pos);
+                intBuf.flip();
+                int recLen = intBuf.getInt();
+                if (recLen < 16 || pos + 4 + recLen > size) break;
+                ByteBuffer payload = ByteBuffer.allocate(recLen);
+                readFully(in, payload, pos + 4);
+                long term = payload.getLong(0);
+                long index = payload.getLong(8);
+                byte[] data = Arrays.copyOfRange(payload.array(), 16, recLen);
+                ByteBuffer rec = encodeRecord(crc, term, index, data);
+                while (rec.hasRemaining()) out.write(rec);
+                pos += 4 + recLen;
+            }
+            out.force(true);
         }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static ByteBuffer encodeRecord(CRC32C crc, long term, long index, byte[] data) {
         int recLen = 8 + 8 + (data == null ? 0 : data.length);
-        ByteBuffer buf = ByteBuffer.allocate(4 + recLen);
+        ByteBuffer buf = ByteBuffer.allocate(8 + recLen);
         buf.putInt(recLen);
+        buf.putInt(0);
         buf.putLong(term);
-        buf.putLong(expectedIndex);
+        buf.putLong(index);
         if (data != null && data.length > 0) buf.put(data);
+        crc.reset();
+        crc.update(buf.array(), 8, recLen);
+        buf.putInt(4, (int) crc.getValue());
         buf.flip();
-        while (buf.hasRemaining()) channel.write(buf);
-        channel.force(true);
-        lastIndex = expectedIndex;
+        return buf;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer dst, long pos) throws IOException {
+        while (dst.hasRemaining()) {
+            int r = ch.read(dst, pos);
+            if (r < 0) {
+                throw new IOException("unexpected end of WAL segment at offset " + pos);
+            }
+            pos += r;
+        }
+    }
+
+    private void openActive() throws IOException {
+        Segment active = segments.lastEntry().getValue();
+        active.channel = FileChannel.open(active.path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (active.size < SEGMENT_HEADER_BYTES) {
+            // A new segment, or an orphan left by a roll that never reached the manifest.
+            active.channel.truncate(0);
+            writeSegmentHeader(active.channel);
+            active.size = SEGMENT_HEADER_BYTES;
+        }
+        long allocated = active.channel.size();
+        if (allocated < segmentBytes) {
+            zeroFill(active.channel, allocated, segmentBytes);
+            active.channel.force(true);
+            allocated = segmentBytes;
+        }
+        active.allocated = allocated;
+        active.channel.position(active.size);
+    }
+
+    // Caller must hold ioLock. Starts preallocating the spare; any earlier spare is overwritten.
+    private void prepareSpare() {
+        try {
+            spareSegment = CompletableFuture.supplyAsync(this::preallocateSpare, preallocator);
+        } catch (RuntimeException e) {
+            spareSegment = null;
+        }
+    }
+
+    private boolean preallocateSpare() {
+        try (FileChannel ch = FileChannel.open(spareFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeSegmentHeader(ch);
+            zeroFill(ch, SEGMENT_HEADER_BYTES, segmentBytes);
+            ch.force(true);
+            return true;
+        } catch (IOException e) {
+            if (!preallocator.isShutdown()) {
+                System.err.println("WAL segment preallocation failed: " + e);
+            }
+            return false;
+        }
+    }
+
+    // Caller must hold ioLock. Renames the spare to the new segment's path and marks the segment as
+    // holding just its header. A spare still being written is waited for, which never takes longer
+    // than preallocating inline; without a usable spare the caller falls back to openActive.
+    private boolean takeSpare(Segment seg) {
+        CompletableFuture<Boolean> ready = spareSegment;
+        spareSegment = null;
+        if (ready == null || !ready.join()) {
+            return false;
+        }
+        try {
+            Files.move(spareFile, seg.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("WAL could not use preallocated segment: " + e);
+            return false;
+        }
+        seg.size = SEGMENT_HEADER_BYTES;
+        return true;
+    }
+
+    private void readManifest(List<Long> firstIndexes) throws IOException {
+        try (InputStream in = Files.newInputStream(manifestFile, StandardOpenOption.READ);
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(in))) {
+            byte[] magicBytes = new byte[4];
+            dis.readFully(magicBytes);
+            if (!MANIFEST_MAGIC.equals(new String(magicBytes, "UTF-8"))) {
+                throw new IOException("Invalid WAL manifest (bad magic)");
+            }
+            int version = dis.readInt();
+            if (version != MANIFEST_VERSION) {
+                throw new IOException("Unsupported WAL manifest version: " + version);
+            }
+            prevIndex = dis.readLong();
+            prevTerm = dis.readLong();
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                firstIndexes.add(dis.readLong());
+            }
+        }
+    }
+
+    // Caller must hold ioLock (or be the constructor).
+    private void writeManifest() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.write(MANIFEST_MAGIC.getBytes("UTF-8"));
+            dos.writeInt(MANIFEST_VERSION);
+            dos.writeLong(prevIndex);
+            dos.writeLong(prevTerm);
+            dos.writeInt(segments.size());
+            for (long first : segments.keySet()) {
+                dos.writeLong(first);
+            }
+        }
+
+        Path tmp = manifestFile.resolveSibling(manifestFile.getFileName().toString() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(baos.toByteArray());
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        try {
+            Files.move(tmp, manifestFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel dirCh = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dirCh.force(true);
+        } catch (Exception ignore) {
+        }
+    }
+
+    public synchronized long append(long term, byte[] data) throws IOException {
+        long expectedIndex = lastIndex + 1;
+        return appendWithExpectedIndex(expectedIndex, term, data);
+    }
+
+    public long appendWithExpectedIndex(long expectedIndex, long term, byte[] data) throws IOException {
+        long idx = enqueue(expectedIndex, term, data);
+        awaitDurable(idx);
+        return idx;
+    }
+
+    public synchronized long enqueue(long expectedIndex, long term, byte[] data) throws IOException {
+        int len = data == null ? 0 : data.length;
+        int start = stageHeader(expectedIndex, term, len);
+        if (len > 0) staging.put(data);
+        return stageChecksum(start, expectedIndex, term);
+    }
+
+    // Stages consecutive records under one monitor hold, so the flusher writes them as a single batch.
+    // Returns the index of the last one.
+    public synchronized long enqueueAll(long expectedIndex, long term, List<byte[]> data) throws IOException {
+        long index = expectedIndex - 1;
+        for (byte[] d : data) {
+            index = enqueue(index + 1, term, d);
+        }
+        return index;
+    }
+
+    // The payload is copied into the staging buffer; the caller keeps ownership of data.
+    public synchronized long enqueue(long expectedIndex, long term, ByteBuffer data) throws IOException {
+        int start = stageHeader(expectedIndex, term, data.remaining());
+        int mark = data.position();
+        staging.put(data);
+        data.position(mark);
+        return stageChecksum(start, expectedIndex, term);
+    }
+
+    // Caller must hold the monitor.
+    private int stageHeader(long expectedIndex, long term, int dataLength) throws IOException {
+        if (closed) {
+            throw new IOException("WAL is closed");
+        }
+        if (flushFailure != null) {
+            throw new IOException("WAL flush previously failed", flushFailure);
+        }
+        if (expectedIndex != lastIndex + 1) {
+            throw new IOException("WAL append index mismatch. expected " + (lastIndex + 1) + " but got " + expectedIndex);
+        }
+        int recordBytes = RECORD_HEADER_BYTES + dataLength;
+        if (staging.remaining() < recordBytes) {
+            int capacity = Math.max(staging.capacity() * 2, staging.position() + recordBytes);
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            staging.flip();
+            grown.put(staging);
+            staging = grown;
+        }
+        int start = staging.position();
+        staging.putInt(16 + dataLength);
+        staging.putInt(0);
+        staging.putLong(term);
+        staging.putLong(expectedIndex);
+        return start;
+    }
+
+    // Caller must hold the monitor.
+    private long stageChecksum(int start, long index, long term) {
+        int end = staging.position();
+        staging.limit(end).position(start + 8);
+        enqueueCrc.reset();
+        enqueueCrc.update(staging);
+        staging.limit(staging.capacity());
+        staging.putInt(start + 4, (int) enqueueCrc.getValue());
+        stagedRecords++;
+        lastIndex = index;
         lastTerm = term;
+        notifyAll();
         return lastIndex;
     }
 
-    public synchronized List<WALRecord> readAll() throws IOException {
+    public synchronized void awaitDurable(long index) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (durableIndex < index) {
+                if (flushFailure != null) {
+                    throw new IOException("WAL flush failed", flushFailure);
+                }
+                if (closed) {
+                    throw new IOException("WAL closed before index " + index + " became durable");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Called from the flusher thread, outside every WAL lock, each time durableIndex advances.
+    // The listener must not block; it delays the next group commit.
+    public void setDurabilityListener(LongConsumer listener) {
+        this.durabilityListener = listener;
+    }
+
+    public synchronized long getDurableIndex() {
+        return durableIndex;
+    }
+
+    public synchronized long getSyncedIndex() {
+        return syncedIndex;
+    }
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return durability;
+    }
+
+    // Caller must hold the monitor.
+    private boolean syncDue() {
+        if (unsyncedRecords == 0) {
+            return false;
+        }
+        switch (durability.mode()) {
+            case ALWAYS:
+                return true;
+            case BATCHED:
+                return unsyncedRecords >= durability.maxRecords()
+                        || System.nanoTime() - firstUnsyncedNanos >= durability.maxDelayMicros() * 1000L;
+            default:
+                return false;
+        }
+    }
+
+    // Any failure stops the flusher for good; it is recorded so that appenders and awaitDurable
+    // callers fail instead of waiting for a flush that will never come.
+    private void flushLoop() {
+        try {
+            while (true) {
+                boolean sync;
+                synchronized (this) {
+                    while (!closed && stagedRecords == 0 && !syncDue()) {
+                        if (unsyncedRecords > 0) {
+                            long waitNanos = durability.maxDelayMicros() * 1000L - (System.nanoTime() - firstUnsyncedNanos);
+                            if (waitNanos <= 0) {
+                                break;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                        } else {
+                            wait();
+                        }
+                    }
+                    if (closed && stagedRecords == 0 && unsyncedRecords == 0) {
+                        return;
+                    }
+                }
+                synchronized (ioLock) {
+                    writePendingLocked();
+                    synchronized (this) {
+                        sync = closed || syncDue();
+                    }
+                    if (sync) {
+                        syncLocked();
+                    }
+                }
+                notifyDurable();
+            }
+        } catch (InterruptedException ie) {
+            failFlusher(new IOException("WAL flusher interrupted", ie));
+        } catch (Throwable t) {
+            System.err.println("WAL group commit failed: " + t);
+            failFlusher(t instanceof IOException ioe ? ioe : new IOException(t));
+        }
+    }
+
+    private synchronized void failFlusher(IOException failure) {
+        flushFailure = failure;
+        notifyAll();
+    }
+
+    private void notifyDurable() {
+        LongConsumer listener = durabilityListener;
+        long durable;
+        synchronized (this) {
+            if (listener == null || durableIndex <= notifiedIndex) {
+                return;
+            }
+            durable = durableIndex;
+            notifiedIndex = durable;
+        }
+        try {
+            listener.accept(durable);
+        } catch (RuntimeException e) {
+            System.err.println("WAL durability listener failed: " + e);
+        }
+    }
+
+    // Caller must hold ioLock.
+    private void writePendingLocked() throws IOException {
+        ByteBuffer batch;
+        int records;
+        synchronized (this) {
+            if (stagedRecords == 0) {
+                return;
+            }
+            batch = staging;
+            records = stagedRecords;
+            staging = spare;
+            spare = null;
+            stagedRecords = 0;
+        }
+
+        try {
+            int end = batch.position();
+            int from = 0;
+            while (from < end) {
+                Segment active = segments.lastEntry().getValue();
+                if (!active.isEmpty() && active.size + (8 + batch.getInt(from)) > segmentBytes) {
+                    active = rollSegment(active);
+                }
+                int to = from;
+                long offset = active.size;
+                while (to < end) {
+                    int recordBytes = 8 + batch.getInt(to);
+                    if (to != from && offset + recordBytes > segmentBytes) break;
+                    active.noteRecord(batch.getLong(to + 16), offset);
+                    active.lastTerm = batch.getLong(to + 8);
+                    active.lastIndex = batch.getLong(to + 16);
+                    offset += recordBytes;
+                    to += recordBytes;
+                }
+                batch.limit(to).position(from);
+                while (batch.hasRemaining()) {
+                    active.channel.write(batch);
+                }
+                batch.limit(batch.capacity());
+                active.size = offset;
+                if (offset > active.allocated) {
+                    active.allocated = offset;
+                    metadataDirty = true;
+                }
+                from = to;
+            }
+        } finally {
+            batch.clear();
+            synchronized (this) {
+                spare = batch;
+            }
+        }
+
+        long written = segments.lastEntry().getValue().lastIndex;
+        synchronized (this) {
+            writtenIndex = Math.max(writtenIndex, written);
+            if (durability.mode() != DurabilityPolicy.Mode.ALWAYS) {
+                durableIndex = writtenIndex;
+                notifyAll();
+            }
+            if (durability.mode() != DurabilityPolicy.Mode.OS) {
+                if (unsyncedRecords == 0) {
+                    firstUnsyncedNanos = System.nanoTime();
+                }
+                unsyncedRecords += records;
+            }
+        }
+    }
+
+    // Caller must hold ioLock.
+    private void syncLocked() throws IOException {
+        long target;
+        synchronized (this) {
+            if (unsyncedRecords == 0) {
+                return;
+            }
+            target = writtenIndex;
+        }
+        segments.lastEntry().getValue().channel.force(metadataDirty);
+        metadataDirty = false;
+        synchronized (this) {
+            syncedIndex = Math.max(syncedIndex, target);
+            durableIndex = Math.max(durableIndex, target);
+            unsyncedRecords = 0;
+            notifyAll();
+        }
+    }
+
+    // Caller must hold ioLock.
+    private void flushPendingLocked() throws IOException {
+        writePendingLocked();
+        syncLocked();
+    }
+
+    // Caller must hold ioLock. The full segment is trimmed to its logical size before it is sealed.
+    private Segment rollSegment(Segment full) throws IOException {
+        full.channel.truncate(full.size);
+        full.channel.force(true);
+        metadataDirty = false;
+        full.channel.close();
+        full.channel = null;
+        Segment next = new Segment(full.lastIndex + 1, segmentPath(full.lastIndex + 1));
+        takeSpare(next);
+        segments.put(next.firstIndex, next);
+        openActive();
+        writeManifest();
+        prepareSpare();
+        return next;
+    }
+
+    // Reads go through a cursor, so ioLock is only held while pending records are written out and
+    // the segment bounds are captured; the records themselves are copied from the mapped files.
+    public List<WALRecord> readFrom(long fromIndex, int maxRecords) throws IOException {
         List<WALRecord> out = new ArrayList<>();
-        long pos = 0;
-        ByteBuffer intBuf = ByteBuffer.allocate(4);
-        while (pos < channel.size()) {
-            intBuf.clear();
-            channel.position(pos);
-            int r = channel.read(intBuf);
-            if (r < 4) break;
-            intBuf.flip();
-            int recLen = intBuf.getInt();
-            if (recLen <= 0) break;
-            if (pos + 4 + recLen > channel.size()) break;
-            ByteBuffer payload = ByteBuffer.allocate(recLen);
-            channel.position(pos + 4);
-            channel.read(payload);
-            payload.flip();
-            long term = payload.getLong();
-            long index = payload.getLong();
-            byte[] data = new byte[recLen - 16];
-            if (data.length > 0) payload.get(data);
-            out.add(new WALRecord(index, term, data));
-            pos += 4 + recLen;
+        try (Cursor cursor = openCursor(fromIndex)) {
+            while (out.size() < maxRecords && cursor.next()) {
+                out.add(new WALRecord(cursor.index(), cursor.term(), cursor.copyData()));
+            }
         }
         return out;
     }
 
+    public Cursor openCursor(long fromIndex) throws IOException {
+        mappingLock.readLock().lock();
+        try {
+            List<SegmentView> views = new ArrayList<>();
+            synchronized (ioLock) {
+                writePendingLocked();
+                Long startKey = segments.floorKey(Math.max(fromIndex, segments.firstKey()));
+                for (Segment seg : segments.tailMap(startKey, true).values()) {
+                    if (seg.isEmpty() || seg.lastIndex < fromIndex) continue;
+                    long start = fromIndex > seg.firstIndex ? seg.floorOffset(fromIndex) : SEGMENT_HEADER_BYTES;
+                    views.add(new SegmentView(seg.path, start, seg.size));
+                }
+            }
+            return new Cursor(views, fromIndex);
+        } catch (IOException | RuntimeException e) {
+            mappingLock.readLock().unlock();
+            throw e;
+        }
+    }
+
+    private record SegmentView(Path path, long start, long end) {}
+
+    // Streams records in index order over read-only mappings of the segment files. index(), term()
+    // and data() describe the current record; data() is a zero-copy view that is only valid until
+    // the next call to next(). A cursor belongs to the thread that opened it and must be closed.
+    public final class Cursor implements Closeable {
+        private final List<SegmentView> views;
+        private final long fromIndex;
+        private final CRC32C crc = new CRC32C();
+        private int segmentPos = -1;
+        private MappedByteBuffer mapped;
+        private ByteBuffer view;
+        private int position;
+        private int limit;
+        private long index;
+        private long term;
+        private int recordStart;
+        private long bytesAfterSegment;
+        private boolean closed;
+
+        private Cursor(List<SegmentView> views, long fromIndex) {
+            this.views = views;
+            this.fromIndex = fromIndex;
+            for (SegmentView sv : views) {
+                bytesAfterSegment += sv.end() - sv.start();
+            }
+        }
+
+        public boolean next() throws IOException {
+            if (closed) {
+                throw new IOException("WAL cursor is closed");
+            }
+            while (true) {
+                if (mapped == null || position >= limit) {
+                    if (!mapNextSegment()) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (limit - position < RECORD_HEADER_BYTES) {
+                    throw corruptAt(position);
+                }
+                int len = mapped.getInt(position);
+                if (len < 16 || len > limit - position - 8) {
+                    throw corruptAt(position);
+                }
+                crc.reset();
+                mapped.limit(position + 8 + len).position(position + 8);
+                crc.update(mapped);
+                mapped.limit(limit).position(0);
+                if ((int) crc.getValue() != mapped.getInt(position + 4)) {
+                    throw corruptAt(position);
+                }
+                term = mapped.getLong(position + 8);
+                index = mapped.getLong(position + 16);
+                view.clear();
+                view.position(position + RECORD_HEADER_BYTES).limit(position + 8 + len);
+                recordStart = position;
+                position += 8 + len;
+                if (index >= fromIndex) {
+                    return true;
+                }
+            }
+        }
+
+        public long index() {
+            return index;
+        }
+
+        public long term() {
+            return term;
+        }
+
+        public ByteBuffer data() {
+            return view;
+        }
+
+        // Bytes from the start of the current record to the end of the log, record headers included.
+        public long remainingBytes() {
+            return bytesAfterSegment + (limit - recordStart);
+        }
+
+        public byte[] copyData() {
+            byte[] data = new byte[view.remaining()];
+            view.get(view.position(), data);
+            return data;
+        }
+
+        private boolean mapNextSegment() throws IOException {
+            if (segmentPos + 1 >= views.size()) {
+                mapped = null;
+                return false;
+            }
+            SegmentView sv = views.get(++segmentPos);
+            bytesAfterSegment -= sv.end() - sv.start();
+            if (sv.end() > Integer.MAX_VALUE) {
+                throw new IOException("WAL segment " + sv.path().getFileName() + " is too large to map");
+            }
+            try (FileChannel ch = FileChannel.open(sv.path(), StandardOpenOption.READ)) {
+                mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, sv.end());
+            }
+            view = mapped.asReadOnlyBuffer();
+            position = (int) sv.start();
+            limit = (int) sv.end();
+            return true;
+        }
 
-    public synchronized void truncateSuffixFrom(long indexExclusive) throws IOException {
-        if (indexExclusive < 0) {
-            channel.truncate(0);
-            channel.force(true);
-            lastIndex = 0;
-            lastTerm = 0;
-            channel.position(0);
-            return;
+        private IOException corruptAt(int offset) {
+            return new IOException("WAL segment " + views.get(segmentPos).path().getFileName()
+                    + " is corrupt at offset " + offset);
         }
-        long pos = 0;
-        long truncatePos = 0;
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                mapped = null;
+                view = null;
+                mappingLock.readLock().unlock();
+            }
+        }
+    }
+
+    public WALRecord read(long index) throws IOException {
+        List<WALRecord> one = readFrom(index, 1);
+        return one.isEmpty() || one.get(0).index() != index ? null : one.get(0);
+    }
+
+    // Returns the file offset of the given record, which must lie inside the segment.
+    private long locate(Segment seg, FileChannel ch, long index) throws IOException {
+        long pos = seg.floorOffset(index);
+        long at = seg.firstIndex + (index - seg.firstIndex) / INDEX_INTERVAL * INDEX_INTERVAL;
         ByteBuffer intBuf = ByteBuffer.allocate(4);
-        while (pos < channel.size()) {
+        while (at < index) {
             intBuf.clear();
-            channel.position(pos);
-            int r = channel.read(intBuf);
-            if (r < 4) break;
+            readFully(ch, intBuf, pos);
             intBuf.flip();
-            int recLen = intBuf.getInt();
-            if (recLen <= 0 || pos + 4 + recLen > channel.size()) break;
-            ByteBuffer payload = ByteBuffer.allocate(recLen);
-            channel.position(pos + 4);
-            channel.read(payload);
-            payload.flip();
-            long term = payload.getLong();
-            long index = payload.getLong();
-            if (index <= indexExclusive) {
-                truncatePos = pos + 4 + recLen;
-            } else {
-                break;
+            pos += 8 + intBuf.getInt();
+            at++;
+        }
+        return pos;
+    }
+
+    // Walks CRC-checked records through a single reusable buffer, refilling it with large reads.
+    private static final class RecordScanner {
+        private final FileChannel ch;
+        private final long end;
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer buffer;
+        private long bufferStart;
+        private int filled;
+
+        long position;
+        long recordPosition;
+        long term;
+        long index;
+
+        RecordScanner(FileChannel ch, long start, long end, ByteBuffer buffer) {
+            this.ch = ch;
+            this.end = end;
+            this.buffer = buffer;
+            this.position = start;
+            this.bufferStart = start;
+            this.filled = 0;
+        }
+
+        boolean next() throws IOException {
+            if (position + RECORD_HEADER_BYTES > end || !ensure(RECORD_HEADER_BYTES)) {
+                return false;
+            }
+            int off = (int) (position - bufferStart);
+            int len = buffer.getInt(off);
+            if (len < 16 || position + 8 + len > end || !ensure(8 + len)) {
+                return false;
             }
-            pos = pos + 4 + recLen;
+            off = (int) (position - bufferStart);
+            crc.reset();
+            buffer.limit(off + 8 + len).position(off + 8);
+            crc.update(buffer);
+            buffer.limit(filled).position(0);
+            if ((int) crc.getValue() != buffer.getInt(off + 4)) {
+                return false;
+            }
+            term = buffer.getLong(off + 8);
+            index = buffer.getLong(off + 16);
+            recordPosition = position;
+            position += 8 + len;
+            return true;
         }
-        channel.truncate(truncatePos);
-        channel.force(true);
-        if (truncatePos == 0) {
-            lastIndex = 0;
-            lastTerm = 0;
-            channel.position(0);
-        } else {
-            long readPos = 0;
-            long li = 0;
+
+        private boolean ensure(int bytes) throws IOException {
+            if (position - bufferStart + bytes <= filled) {
+                return true;
+            }
+            if (bytes > buffer.capacity()) {
+                buffer = buffer.isDirect() ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+            }
+            buffer.clear();
+            bufferStart = position;
+            long remaining = end - position;
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            while (buffer.hasRemaining()) {
+                if (ch.read(buffer, bufferStart + buffer.position()) < 0) break;
+            }
+            filled = buffer.position();
+            buffer.limit(filled).position(0);
+            return filled >= bytes;
+        }
+    }
+
+    public void truncateSuffixFrom(long indexExclusive) throws IOException {
+        mappingLock.writeLock().lock();
+        try {
+            truncateSuffixLocked(indexExclusive);
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    private void truncateSuffixLocked(long indexExclusive) throws IOException {
+        synchronized (ioLock) {
+            flushPendingLocked();
+            long keep = Math.max(indexExclusive, prevIndex);
+
+            Segment active = segments.lastEntry().getValue();
+            active.channel.close();
+            active.channel = null;
+
+            boolean dropped = false;
+            while (segments.size() > 1 && segments.lastKey() > keep) {
+                Segment seg = segments.pollLastEntry().getValue();
+                Files.deleteIfExists(seg.path);
+                dropped = true;
+            }
+
+            Segment tail = segments.lastEntry().getValue();
+            if (tail.lastIndex > keep) {
+                truncateSegment(tail, keep);
+            }
+            openActive();
+            if (dropped) {
+                writeManifest();
+            }
+
+            long li = tail.isEmpty() ? prevIndex : tail.lastIndex;
+            long lt = tail.isEmpty() ? prevTerm : tail.lastTerm;
+            setTail(li, lt);
+        }
+    }
+
+    private void truncateSegment(Segment seg, long keepThrough) throws IOException {
+        try (FileChannel ch = FileChannel.open(seg.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long pos = SEGMENT_HEADER_BYTES;
+            long li = seg.firstIndex - 1;
             long lt = 0;
-            pos = 0;
-            while (pos < truncatePos) {
-                intBuf.clear();
-                channel.position(pos);
-                channel.read(intBuf);
-                intBuf.flip();
-                int recLen = intBuf.getInt();
-                ByteBuffer payload = ByteBuffer.allocate(recLen);
-                channel.position(pos + 4);
-                channel.read(payload);
-                payload.flip();
-                lt = payload.getLong();
-                li = payload.getLong();
-                pos = pos + 4 + recLen;
+            if (keepThrough >= seg.firstIndex) {
+                long keepPos = locate(seg, ch, keepThrough);
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+                readFully(ch, header, keepPos);
+                header.flip();
+                int recLen = header.getInt();
+                header.getInt();
+                lt = header.getLong();
+                li = header.getLong();
+                pos = keepPos + 8 + recLen;
             }
-            lastIndex = li;
-            lastTerm = lt;
-            channel.position(channel.size());
+            zeroFill(ch, pos, seg.size);
+            ch.force(false);
+            seg.size = pos;
+            seg.lastIndex = li;
+            seg.lastTerm = lt;
+            seg.truncateIndex(li);
+        }
+    }
+
+    // Drops every whole segment whose records are all at or below the given index, e.g. after a
+    // snapshot has captured them. The active segment is always kept. Waits for open cursors, which
+    // may still map the segments being deleted.
+    public int compactUpTo(long index) throws IOException {
+        mappingLock.writeLock().lock();
+        try {
+            return compactUpToLocked(index);
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    private int compactUpToLocked(long index) throws IOException {
+        synchronized (ioLock) {
+            writePendingLocked();
+            List<Segment> victims = new ArrayList<>();
+            for (Map.Entry<Long, Segment> e : segments.entrySet()) {
+                Segment seg = e.getValue();
+                if (seg == segments.lastEntry().getValue() || seg.lastIndex > index) {
+                    break;
+                }
+                victims.add(seg);
+            }
+            if (victims.isEmpty()) {
+                return 0;
+            }
+            for (Segment seg : victims) {
+                segments.remove(seg.firstIndex);
+            }
+            Segment lastDropped = victims.get(victims.size() - 1);
+            synchronized (this) {
+                prevIndex = lastDropped.lastIndex;
+                prevTerm = lastDropped.lastTerm;
+            }
+            writeManifest();
+            for (Segment seg : victims) {
+                Files.deleteIfExists(seg.path);
+            }
+            return victims.size();
+        }
+    }
+
+    // Discards every record and restarts the log right after the given entry, e.g. once a snapshot
+    // that the local log does not reach has been installed.
+    public void resetTo(long index, long term) throws IOException {
+        mappingLock.writeLock().lock();
+        try {
+            synchronized (ioLock) {
+                flushPendingLocked();
+                Segment active = segments.lastEntry().getValue();
+                active.channel.close();
+                active.channel = null;
+                for (Segment seg : segments.values()) {
+                    Files.deleteIfExists(seg.path);
+                }
+                segments.clear();
+                Segment next = new Segment(index + 1, segmentPath(index + 1));
+                boolean usedSpare = takeSpare(next);
+                segments.put(next.firstIndex, next);
+                synchronized (this) {
+                    prevIndex = index;
+                    prevTerm = term;
+                    lastIndex = index;
+                    lastTerm = term;
+                    writtenIndex = index;
+                    syncedIndex = index;
+                    durableIndex = index;
+                    notifiedIndex = index;
+                }
+                openActive();
+                writeManifest();
+                if (usedSpare) {
+                    prepareSpare();
+                }
+            }
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    private synchronized void setTail(long index, long term) {
+        lastIndex = index;
+        lastTerm = term;
+        writtenIndex = Math.min(writtenIndex, index);
+        syncedIndex = Math.min(syncedIndex, index);
+        durableIndex = Math.min(durableIndex, index);
+        notifiedIndex = Math.min(notifiedIndex, index);
+    }
+
+    public synchronized long getFirstIndex() {
+        return prevIndex + 1;
+    }
+
+    // Term of the entry just before getFirstIndex(), the last one compacted away.
+    public synchronized long getPrevTerm() {
+        return prevTerm;
+    }
+
+    public int getSegmentCount() {
+        synchronized (ioLock) {
+            return segments.size();
         }
     }
 
@@ -186,7 +1259,28 @@ public final class WriteAheadLog implements Closeable {
     }
 
     @Override
-    public synchronized void close() throws IOException {
-        channel.close();
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        preallocator.shutdownNow();
+        synchronized (ioLock) {
+            Segment active = segments.lastEntry().getValue();
+            try {
+                flushPendingLocked();
+                active.channel.force(true);
+            } finally {
+                active.channel.close();
+            }
+        }
     }
 }
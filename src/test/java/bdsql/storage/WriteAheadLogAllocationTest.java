@@ -0,0 +1,78 @@
+package bdsql.storage;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Measures heap allocated by the appending thread per WAL record once the staging buffers have
+// warmed up, next to the per-record heap ByteBuffer encoding the append path used to do.
+class WriteAheadLogAllocationTest {
+    private static final int WARMUP_RECORDS = 20_000;
+    private static final int MEASURED_RECORDS = 100_000;
+    private static final int PAYLOAD_BYTES = 256;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void steadyStateAppendsAllocateNothingPerRecord() throws Exception {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        long tid = Thread.currentThread().threadId();
+        byte[] payload = new byte[PAYLOAD_BYTES];
+
+        double walBytesPerRecord;
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 64L * 1024 * 1024, DurabilityPolicy.osOnly())) {
+            for (int i = 0; i < WARMUP_RECORDS; i++) {
+                wal.append(1, payload);
+            }
+            long before = threads.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < MEASURED_RECORDS; i++) {
+                wal.append(1, payload);
+            }
+            walBytesPerRecord = (threads.getThreadAllocatedBytes(tid) - before) / (double) MEASURED_RECORDS;
+        }
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP_RECORDS; i++) {
+            sink += encodePerRecord(i, payload).remaining();
+        }
+        long before = threads.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < MEASURED_RECORDS; i++) {
+            sink += encodePerRecord(i, payload).remaining();
+        }
+        double heapBytesPerRecord = (threads.getThreadAllocatedBytes(tid) - before) / (double) MEASURED_RECORDS;
+
+        assertTrue(sink > 0);
+        assertTrue(heapBytesPerRecord >= PAYLOAD_BYTES,
+                "reference encoding allocated only " + heapBytesPerRecord + " B/record");
+        assertTrue(walBytesPerRecord < 8, "WAL append allocated " + walBytesPerRecord
+                + " B/record against " + heapBytesPerRecord + " B/record for per-record heap encoding");
+    }
+
+    // What appendWithExpectedIndex did before the staging buffers: one heap buffer per record.
+    private static ByteBuffer encodePerRecord(long index, byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocate(4 + 16 + data.length);
+        buf.putInt(16 + data.length);
+        buf.putLong(1);
+        buf.putLong(index);
+        buf.put(data);
+        buf.flip();
+        return buf;
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "per-thread allocation counters are not available on this JVM");
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "per-thread allocation counters are not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+}